@@ -1,5 +1,6 @@
 plugins {
     java
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.lootcrates"
@@ -27,9 +28,22 @@ dependencies {
     // compileOnly(files("libs/PlaceholderAPI.jar"))
     // compileOnly(files("libs/PlayerPoints.jar"))
     // compileOnly(files("libs/Oraxen.jar"))
+
+    // Tests
+    testImplementation("io.papermc.paper:paper-api:1.21-R0.1-SNAPSHOT")
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    // Benchmarks (./gradlew jmh)
+    jmh("io.papermc.paper:paper-api:1.21-R0.1-SNAPSHOT")
 }
 
 
 tasks.withType<JavaCompile> {
     options.encoding = "UTF-8"
 }
+
+tasks.test {
+    useJUnitPlatform()
+}
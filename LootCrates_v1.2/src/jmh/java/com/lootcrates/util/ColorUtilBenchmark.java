@@ -0,0 +1,71 @@
+package com.lootcrates.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the single pass {@link ColorUtil} scanner, with and without its cache, against
+ * the regex based colorize it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorUtilBenchmark {
+
+    private static final Pattern HEX_PATTERN = Pattern.compile("&#([A-Fa-f0-9]{6})");
+
+    @Param({
+        "Plain text without any color codes",
+        "&6&lLegendary Crate &7- &eRight click to open",
+        "&#FFAA00Golden &#FFD700Key &7(&#55FF55x3&7)"
+    })
+    public String message;
+
+    @Benchmark
+    public String regex() {
+        return regexColorize(message);
+    }
+
+    @Benchmark
+    public String scanner() {
+        return ColorUtil.colorizeUncached(message);
+    }
+
+    @Benchmark
+    public String scannerCached() {
+        return ColorUtil.colorize(message);
+    }
+
+    /**
+     * ColorUtil.colorize as it was before the single pass scanner.
+     */
+    private static String regexColorize(String message) {
+        if (message == null) return "";
+
+        // Handle hex colors first
+        Matcher matcher = HEX_PATTERN.matcher(message);
+        while (matcher.find()) {
+            String hexCode = matcher.group(1);
+            String replacement = net.md_5.bungee.api.ChatColor.of("#" + hexCode).toString();
+            message = message.replace("&#" + hexCode, replacement);
+        }
+
+        // Handle legacy color codes
+        return org.bukkit.ChatColor.translateAlternateColorCodes('&', message);
+    }
+}
@@ -8,13 +8,16 @@ import com.lootcrates.economy.EconomyManager;
 import com.lootcrates.hooks.*;
 import com.lootcrates.listener.CrateBlockListener;
 import com.lootcrates.listener.CrateListener;
+import com.lootcrates.listener.KeyCountListener;
 import com.lootcrates.listener.PlayerListener;
 import com.lootcrates.manager.*;
 import com.lootcrates.storage.CrateBlocks;
 import com.lootcrates.util.MessageManager;
 import com.lootcrates.util.MetricsCollector;
+import com.lootcrates.util.OpenTracer;
 import net.milkbowl.vault.economy.Economy;
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
 
@@ -40,6 +43,9 @@ public class LootCratesPlugin extends JavaPlugin {
     private ShopManager shopManager;
     private AnimationManager animationManager;
     private HologramManager hologramManager;
+    private KeyCountManager keyCountManager;
+    private VirtualKeyManager virtualKeyManager;
+    private RewardDeliveryManager rewardDeliveryManager;
     
     // Hook managers
     private PlaceholderAPIHook placeholderHook;
@@ -51,6 +57,7 @@ public class LootCratesPlugin extends JavaPlugin {
     
     // Metrics
     private MetricsCollector metrics;
+    private OpenTracer openTracer;
     
     // Economy
     private Economy economy;
@@ -77,6 +84,10 @@ public class LootCratesPlugin extends JavaPlugin {
         saveDefaultConfig();
         saveResource("messages.yml", false);
         
+        // Start metrics collection, before anything that records into it
+        this.metrics = new MetricsCollector(this);
+        this.openTracer = new OpenTracer(this);
+        
         // Initialize core managers
         if (!initializeCore()) {
             getLogger().severe("Failed to initialize core components! Disabling plugin.");
@@ -97,9 +108,6 @@ public class LootCratesPlugin extends JavaPlugin {
         // Initialize API
         this.api = new LootCratesAPI(this);
         
-        // Start metrics collection
-        this.metrics = new MetricsCollector(this);
-        
         // Delayed initialization for dependent features
         Bukkit.getScheduler().runTaskLater(this, this::delayedInitialization, 1L);
         
@@ -112,13 +120,40 @@ public class LootCratesPlugin extends JavaPlugin {
     public void onDisable() {
         getLogger().info("Disabling LootCrates Plugin...");
         
-        // Save all pending data
+        // Stop serving metrics before the managers behind them shut down
+        if (metrics != null) {
+            metrics.shutdown();
+        }
+        
+        // Hand out rewards that are still waiting for the delivery task
+        if (rewardDeliveryManager != null) {
+            rewardDeliveryManager.flushAll();
+        }
+        
+        // Save all pending data, queued behind older writes and drained by closeConnection
         if (queueManager != null) {
-            queueManager.saveAllQueues();
+            queueManager.shutdown();
         }
         
         if (playerDataManager != null) {
-            playerDataManager.saveAllData();
+            playerDataManager.flushDirty();
+        }
+        
+        if (cooldownManager != null) {
+            cooldownManager.flushAll();
+        }
+        
+        if (pityManager != null) {
+            pityManager.flushAll();
+        }
+        
+        if (virtualKeyManager != null) {
+            virtualKeyManager.flushAll();
+        }
+        
+        // Fold pending crate block changes into crates.yml
+        if (crateBlocks != null) {
+            crateBlocks.close();
         }
         
         // Cleanup hologram displays
@@ -178,6 +213,9 @@ public class LootCratesPlugin extends JavaPlugin {
             this.shopManager = new ShopManager(this);
             this.animationManager = new AnimationManager(this);
             this.hologramManager = new HologramManager(this);
+            this.keyCountManager = new KeyCountManager(this);
+            this.virtualKeyManager = new VirtualKeyManager(this);
+            this.rewardDeliveryManager = new RewardDeliveryManager(this);
             
             getLogger().info("All managers initialized successfully.");
         } catch (Exception e) {
@@ -220,6 +258,7 @@ public class LootCratesPlugin extends JavaPlugin {
         getServer().getPluginManager().registerEvents(new CrateListener(), this);
         getServer().getPluginManager().registerEvents(new CrateBlockListener(this), this);
         getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
+        getServer().getPluginManager().registerEvents(new KeyCountListener(this), this);
     }
     
     private void delayedInitialization() {
@@ -228,13 +267,35 @@ public class LootCratesPlugin extends JavaPlugin {
             hologramManager.setupAllHolograms();
         }
         
+        // Players already online after a reload never went through pre-login
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            if (cooldownManager != null) {
+                cooldownManager.loadPlayer(player.getUniqueId());
+            }
+            if (pityManager != null) {
+                pityManager.loadPlayer(player.getUniqueId());
+            }
+            if (virtualKeyManager != null) {
+                virtualKeyManager.loadPlayer(player.getUniqueId());
+            }
+        }
+        
         // Start background tasks
         startBackgroundTasks();
         
+        // Prometheus endpoint, once every manager it reads from exists
+        metrics.startExporter();
+        
         getLogger().info("Delayed initialization completed.");
     }
     
     private void startBackgroundTasks() {
+        // Coalesced money, points and XP delivery
+        if (rewardDeliveryManager != null) {
+            long window = Math.max(1, getConfig().getInt("settings.reward_delivery.window_ticks", 2));
+            Bukkit.getScheduler().runTaskTimer(this, rewardDeliveryManager::deliverPending, window, window);
+        }
+        
         // Leaderboard update task
         if (leaderboardManager != null) {
             Bukkit.getScheduler().runTaskTimerAsynchronously(this, 
@@ -253,15 +314,53 @@ public class LootCratesPlugin extends JavaPlugin {
             );
         }
         
-        // Auto-save task
-        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
-            if (playerDataManager != null) {
-                playerDataManager.saveAllData();
-            }
+        // Database connection pool maintenance
+        if (databaseManager != null) {
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this,
+                databaseManager::housekeep, 20L * 30L, 20L * 30L);
+        }
+        
+        // Crate block journal compaction
+        if (crateBlocks != null) {
+            long interval = 20L * Math.max(1, getConfig().getInt("settings.crate_blocks.compact_interval", 300));
+            Bukkit.getScheduler().runTaskTimer(this, crateBlocks::compact, interval, interval);
+        }
+        
+        // Expired cooldowns
+        if (cooldownManager != null) {
+            long interval = 20L * Math.max(1, getConfig().getInt("settings.cooldowns.cleanup_interval", 60));
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this,
+                cooldownManager::cleanupExpiredCooldowns, interval, interval);
+        }
+        
+        // Player statistics write-behind
+        if (playerDataManager != null) {
+            long interval = 20L * Math.max(1, getConfig().getInt("settings.database.flush_interval", 5));
+            // Snapshots are taken on the main thread, the write itself is queued
+            Bukkit.getScheduler().runTaskTimer(this,
+                playerDataManager::flushDirty, interval, interval);
+        }
+        
+        // Auto-save task, only queues writes. Player statistics are already written behind above.
+        Bukkit.getScheduler().runTaskTimer(this, () -> {
             if (queueManager != null) {
                 queueManager.saveAllQueues();
             }
         }, 20L * 300L, 20L * 300L); // Every 5 minutes
+        
+        // Pity counter write-behind
+        if (pityManager != null) {
+            long interval = 20L * Math.max(1, getConfig().getInt("settings.pity.flush_interval", 30));
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this,
+                pityManager::flushAll, interval, interval);
+        }
+        
+        // Virtual key write-behind
+        if (virtualKeyManager != null && virtualKeyManager.isEnabled()) {
+            long interval = 20L * Math.max(1, getConfig().getInt("settings.keys.flush_interval", 10));
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this,
+                virtualKeyManager::flushAll, interval, interval);
+        }
     }
 
     private boolean setupEconomy() {
@@ -290,6 +389,11 @@ public class LootCratesPlugin extends JavaPlugin {
     public ShopManager getShopManager() { return shopManager; }
     public AnimationManager getAnimationManager() { return animationManager; }
     public HologramManager getHologramManager() { return hologramManager; }
+    public KeyCountManager getKeyCountManager() { return keyCountManager; }
+    public VirtualKeyManager getVirtualKeyManager() { return virtualKeyManager; }
+    public RewardDeliveryManager getRewardDeliveryManager() { return rewardDeliveryManager; }
+    public MetricsCollector getMetrics() { return metrics; }
+    public OpenTracer getOpenTracer() { return openTracer; }
     
     // Hook getters
     public PlaceholderAPIHook getPlaceholderHook() { return placeholderHook; }
@@ -11,6 +11,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * LootCrates API for other plugins to interact with the crate system
@@ -57,38 +58,66 @@ public class LootCratesAPI {
      * @return true if player has at least one key
      */
     public boolean hasKey(Player player, String crateId) {
+        return getKeyCount(player, crateId) > 0;
+    }
+    
+    /**
+     * Get the number of keys a player has for a specific crate. Served from the per-player key
+     * count cache, which is updated when the plugin grants or takes keys and refreshed the tick
+     * after an inventory change.
+     * @param player The player
+     * @param crateId The crate ID
+     * @return Number of keys
+     */
+    public int getKeyCount(Player player, String crateId) {
         Crate crate = getCrate(crateId);
-        if (crate == null) return false;
+        if (crate == null) return 0;
         
-        var keyItem = crate.getKey().createItem(1);
-        for (var item : player.getInventory().getContents()) {
-            if (item != null && item.isSimilar(keyItem)) {
-                return true;
-            }
-        }
-        return false;
+        return plugin.getCrateManager().getKeyCount(player, crate);
     }
     
     /**
-     * Get the number of keys a player has for a specific crate
+     * Get the number of keys a player has for a specific crate by scanning their inventory.
+     * Use instead of {@link #getKeyCount} right after changing the inventory in the same tick.
      * @param player The player
      * @param crateId The crate ID
      * @return Number of keys
      */
-    public int getKeyCount(Player player, String crateId) {
+    public int getExactKeyCount(Player player, String crateId) {
         Crate crate = getCrate(crateId);
         if (crate == null) return 0;
         
-        var keyItem = crate.getKey().createItem(1);
-        int count = 0;
+        return plugin.getCrateManager().countKeys(player, crate);
+    }
+    
+    /**
+     * Give virtual keys to a player who may be offline.
+     * Only available when virtual keys are enabled.
+     * @param playerId The player UUID
+     * @param crateId The crate ID
+     * @param amount The amount of keys
+     * @return true if the keys were credited
+     */
+    public boolean giveVirtualKeys(UUID playerId, String crateId, int amount) {
+        Crate crate = getCrate(crateId);
+        if (crate == null || !plugin.getVirtualKeyManager().isEnabled()) return false;
         
-        for (var item : player.getInventory().getContents()) {
-            if (item != null && item.isSimilar(keyItem)) {
-                count += item.getAmount();
-            }
-        }
+        plugin.getVirtualKeyManager().credit(playerId, crate, amount);
+        return true;
+    }
+    
+    /**
+     * Take virtual keys from an online player
+     * @param player The player
+     * @param crateId The crate ID
+     * @param amount The amount of keys
+     * @return true if the player had enough keys and they were removed
+     */
+    public boolean takeVirtualKeys(Player player, String crateId, int amount) {
+        Crate crate = getCrate(crateId);
+        if (crate == null || !plugin.getVirtualKeyManager().isEnabled()) return false;
         
-        return count;
+        return plugin.getVirtualKeyManager().debit(player.getUniqueId(), crate, amount);
     }
     
     /**
@@ -105,6 +134,20 @@ public class LootCratesAPI {
         return true;
     }
     
+    /**
+     * Open several crates at once using the player's keys, delivering all rewards together
+     * @param player The player
+     * @param crateId The crate ID
+     * @param amount The maximum number of crates to open
+     * @return the number of crates opened
+     */
+    public int openMany(Player player, String crateId, int amount) {
+        Crate crate = getCrate(crateId);
+        if (crate == null) return 0;
+
+        return com.lootcrates.command.CrateOpener.openMany(plugin, player, crate, amount);
+    }
+    
     /**
      * Get player statistics
      * @param playerId The player UUID
@@ -123,6 +166,15 @@ public class LootCratesAPI {
         return plugin.getPlayerDataManager().getPlayerData(player);
     }
     
+    /**
+     * Get player statistics without blocking the calling thread
+     * @param playerId The player UUID
+     * @return Future completed with the PlayerData object
+     */
+    public CompletableFuture<PlayerData> getPlayerDataAsync(UUID playerId) {
+        return plugin.getPlayerDataManager().getPlayerDataAsync(playerId, null);
+    }
+    
     /**
      * Check if a player has a cooldown for a specific crate
      * @param player The player
@@ -2,8 +2,14 @@ package com.lootcrates.command;
 
 import com.lootcrates.LootCratesPlugin;
 import com.lootcrates.crate.Crate;
+import com.lootcrates.database.ConnectionPool;
+import com.lootcrates.manager.RewardDeliveryManager;
+import com.lootcrates.util.LatencyHistogram;
 import com.lootcrates.util.MessageManager;
+import com.lootcrates.util.MetricsCollector;
+import com.lootcrates.util.OpenTracer;
 import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.block.Block;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -16,6 +22,7 @@ import org.jetbrains.annotations.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.StringJoiner;
 import java.util.stream.Collectors;
 
 public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
@@ -112,7 +119,7 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
         }
         
         if (args.length < 2) {
-            player.sendMessage("§cUsage: /crate open <crate>");
+            player.sendMessage("§cUsage: /crate open <crate> [amount]");
             return;
         }
         
@@ -152,6 +159,25 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
             return;
         }
         
+        int amount = 1;
+        if (args.length >= 3) {
+            try {
+                amount = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                amount = 0;
+            }
+            if (amount < 1) {
+                plugin.getMessageManager().sendMessageWithPrefix(player, "general.invalid_number",
+                    MessageManager.Placeholder.of("input", args[2]));
+                return;
+            }
+        }
+        
+        if (amount > 1) {
+            CrateOpener.openMany(plugin, player, crate, amount);
+            return;
+        }
+        
         // Try to open with key
         CrateOpener.tryOpenWithKey(plugin, player, crate, true);
     }
@@ -251,7 +277,8 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
         }
         
         Player target = Bukkit.getPlayerExact(args[1]);
-        if (target == null) {
+        OfflinePlayer offlineTarget = target == null ? findQueueTarget(args[1]) : null;
+        if (target == null && offlineTarget == null) {
             plugin.getMessageManager().sendMessage((Player) sender, "general.invalid_player",
                 MessageManager.Placeholder.of("player", args[1]));
             return;
@@ -267,6 +294,11 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
         
         try {
             int amount = Integer.parseInt(args[3]);
+            if (offlineTarget != null) {
+                queueForOffline(sender, offlineTarget, amount + "x " + crate.getKey().getDisplay(),
+                    plugin.getQueueManager().enqueueKeys(offlineTarget.getUniqueId(), crate, Math.max(1, amount)));
+                return;
+            }
             plugin.getCrateManager().giveKey(target, crateId, amount);
             
             plugin.getMessageManager().sendMessage((Player) sender, "keys.keys_given",
@@ -370,7 +402,8 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
         }
         
         Player target = Bukkit.getPlayerExact(args[1]);
-        if (target == null) {
+        OfflinePlayer offlineTarget = target == null ? findQueueTarget(args[1]) : null;
+        if (target == null && offlineTarget == null) {
             plugin.getMessageManager().sendMessage((Player) sender, "general.invalid_player",
                 MessageManager.Placeholder.of("player", args[1]));
             return;
@@ -384,11 +417,35 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
             return;
         }
         
+        if (offlineTarget != null) {
+            queueForOffline(sender, offlineTarget, crate.getDisplay(),
+                plugin.getQueueManager().enqueueOpens(offlineTarget.getUniqueId(), crate, 1));
+            return;
+        }
+        
         // Force open without key requirement
         CrateOpener.forceOpen(plugin, target, crate);
         sender.sendMessage("§aForced " + target.getName() + " to open " + crate.getDisplay());
     }
     
+    /**
+     * Resolves a known offline player when the offline queue is enabled.
+     */
+    private OfflinePlayer findQueueTarget(String name) {
+        if (!plugin.getQueueManager().isEnabled()) {
+            return null;
+        }
+        OfflinePlayer offline = Bukkit.getOfflinePlayerIfCached(name);
+        return offline != null && !offline.isOnline() ? offline : null;
+    }
+    
+    private void queueForOffline(CommandSender sender, OfflinePlayer target, String reward, boolean queued) {
+        String name = target.getName() != null ? target.getName() : target.getUniqueId().toString();
+        sender.sendMessage(plugin.getMessageManager().getMessage(queued ? "queue.reward_queued" : "queue.target_queue_full",
+            MessageManager.Placeholder.of("player", name),
+            MessageManager.Placeholder.of("reward", reward)));
+    }
+    
     private void handleMigrate(CommandSender sender) {
         if (!sender.hasPermission("lootcrates.admin")) {
             plugin.getMessageManager().sendMessage((Player) sender, "general.no_permission");
@@ -405,6 +462,80 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
             return;
         }
         
+        if (args.length >= 2 && args[1].equalsIgnoreCase("pool")) {
+            ConnectionPool.Stats stats = plugin.getDatabaseManager().getPoolStats();
+            if (stats == null) {
+                sender.sendMessage("§cDatabase connection pool is not initialised.");
+                return;
+            }
+            sender.sendMessage("§6Connection pool §7(" + plugin.getDatabaseManager().getDatabaseType() + ")");
+            sender.sendMessage("§7Connections: §f" + stats.total() + "§7/§f" + stats.maxSize()
+                + " §7(active §f" + stats.active() + "§7, idle §f" + stats.idle() + "§7, waiting §f" + stats.waiting() + "§7)");
+            sender.sendMessage("§7Borrows: §f" + stats.borrows() + " §7Timeouts: §f" + stats.timeouts()
+                + " §7Leaks: §f" + stats.leaks());
+            sender.sendMessage("§7Opened: §f" + stats.created() + " §7Closed: §f" + stats.destroyed());
+            
+            ConnectionPool.Stats readStats = plugin.getDatabaseManager().getReadPoolStats();
+            if (readStats != null) {
+                sender.sendMessage("§7Readers: §f" + readStats.total() + "§7/§f" + readStats.maxSize()
+                    + " §7(active §f" + readStats.active() + "§7, waiting §f" + readStats.waiting() + "§7)");
+            }
+            sender.sendMessage("§7Queued writes: §f" + plugin.getDatabaseManager().getPendingWrites());
+            return;
+        }
+        
+        if (args.length >= 2 && args[1].equalsIgnoreCase("metrics")) {
+            MetricsCollector metrics = plugin.getMetrics();
+            sender.sendMessage("§6Latency §7(p50 / p99 / max)");
+            for (MetricsCollector.Stage stage : MetricsCollector.Stage.values()) {
+                LatencyHistogram.Snapshot latency = metrics.getLatency(stage);
+                sender.sendMessage(String.format("§7%s: §f%.2fms §7/ §f%.2fms §7/ §f%.2fms §7(%d samples)", stage,
+                    LatencyHistogram.Snapshot.toMillis(latency.getPercentileNanos(50)),
+                    LatencyHistogram.Snapshot.toMillis(latency.getPercentileNanos(99)),
+                    LatencyHistogram.Snapshot.toMillis(latency.getMaxNanos()),
+                    latency.getCount()));
+            }
+            metrics.getCrateOpenCounts().forEach((crateId, opens) ->
+                sender.sendMessage("§7Opens of §f" + crateId + "§7: §f" + opens));
+            return;
+        }
+        
+        if (args.length >= 2 && args[1].equalsIgnoreCase("slow")) {
+            OpenTracer tracer = plugin.getOpenTracer();
+            if (!tracer.isEnabled()) {
+                sender.sendMessage("§cOpen tracing is disabled, enable settings.tracing in config.yml.");
+                return;
+            }
+            List<OpenTracer.SlowOpen> slowOpens = tracer.getSlowOpens();
+            sender.sendMessage(String.format("§6Slow opens §7(over %dms, sampling %.0f%%, %d recorded)",
+                tracer.getSlowThresholdMillis(), tracer.getSampleRate() * 100, tracer.getRecordedCount()));
+            if (slowOpens.isEmpty()) {
+                sender.sendMessage("§7None recorded yet.");
+            }
+            for (OpenTracer.SlowOpen open : slowOpens) {
+                StringJoiner phases = new StringJoiner("§7, ");
+                for (OpenTracer.Phase phase : OpenTracer.Phase.values()) {
+                    phases.add(String.format("§7%s §f%.2f", phase.name().toLowerCase(),
+                        LatencyHistogram.Snapshot.toMillis(open.getPhaseNanos(phase))));
+                }
+                sender.sendMessage(String.format("§7%tT §f%s §7opened §f%dx %s §7in §f%.2fms",
+                    open.timestamp(), open.playerName(), open.count(), open.crateId(),
+                    LatencyHistogram.Snapshot.toMillis(open.totalNanos())));
+                sender.sendMessage("  " + phases);
+            }
+            return;
+        }
+        
+        if (args.length >= 2 && args[1].equalsIgnoreCase("delivery")) {
+            RewardDeliveryManager.Stats stats = plugin.getRewardDeliveryManager().getStats();
+            sender.sendMessage("§6Reward delivery");
+            sender.sendMessage("§7Deliveries: §f" + stats.deliveries() + " §7(grants §f" + stats.grants()
+                + "§7, waiting players §f" + stats.pendingPlayers() + "§7)");
+            sender.sendMessage(String.format("§7Latency: §favg %.1fms§7, §fmax %.1fms",
+                stats.averageLatencyMillis(), stats.maxLatencyMillis()));
+            return;
+        }
+        
         if (args.length >= 2) {
             boolean enable = args[1].equalsIgnoreCase("true") || args[1].equalsIgnoreCase("on");
             plugin.setDebugMode(enable);
@@ -476,7 +607,12 @@ public class CrateCommandExecutor implements CommandExecutor, TabCompleter {
                             .collect(Collectors.toList());
                     }
                 }
-                case "debug", "maintenance" -> {
+                case "debug" -> {
+                    return Arrays.asList("true", "false", "on", "off", "pool", "delivery", "metrics", "slow").stream()
+                        .filter(option -> option.startsWith(args[1].toLowerCase()))
+                        .collect(Collectors.toList());
+                }
+                case "maintenance" -> {
                     return Arrays.asList("true", "false", "on", "off").stream()
                         .filter(option -> option.startsWith(args[1].toLowerCase()))
                         .collect(Collectors.toList());
@@ -4,6 +4,7 @@ import com.lootcrates.LootCratesPlugin;
 import com.lootcrates.crate.Crate;
 import com.lootcrates.crate.Reward;
 import com.lootcrates.util.ColorUtil;
+import com.lootcrates.util.MessageManager;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
@@ -12,52 +13,160 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CrateGUI {
     
+    private static final int INVENTORY_SIZE = 54;
+    private static final int PAGE_SIZE = 45;
+    private static final int PREVIOUS_SLOT = 45;
+    private static final int PAGE_INFO_SLOT = 49;
+    private static final int NEXT_SLOT = 53;
+    
+    // Built on load and reload, opening a preview only copies the cached page
+    private static final Map<String, Preview> previews = new ConcurrentHashMap<>();
+    
     public static void openPreview(Player player, Crate crate) {
-        String title = ColorUtil.colorize("&8Preview: " + crate.getDisplay());
-        Inventory inventory = Bukkit.createInventory(null, 54, title);
+        openPreview(player, crate, 0);
+    }
+    
+    public static void openPreview(Player player, Crate crate, int page) {
+        Preview preview = previews.get(crate.getId());
+        if (preview == null || preview.crate() != crate) {
+            preview = buildPreview(crate);
+            previews.put(crate.getId(), preview);
+        }
+        
+        int index = Math.max(0, Math.min(page, preview.pages().length - 1));
+        PreviewHolder holder = new PreviewHolder(crate.getId(), index, preview.pages().length);
+        Inventory inventory = Bukkit.createInventory(holder, INVENTORY_SIZE, preview.title());
+        holder.setInventory(inventory);
+        inventory.setContents(preview.pages()[index].clone());
         
-        int slot = 0;
-        for (Reward reward : crate.getRewards()) {
-            if (slot >= 54) break;
+        player.openInventory(inventory);
+    }
+    
+    /**
+     * Replaces all cached previews, called whenever crates are (re)loaded.
+     */
+    public static void rebuildPreviews(Collection<Crate> crates) {
+        previews.clear();
+        for (Crate crate : crates) {
+            previews.put(crate.getId(), buildPreview(crate));
+        }
+    }
+    
+    public static void handlePreviewClick(Player player, PreviewHolder holder, int rawSlot) {
+        int target;
+        if (rawSlot == PREVIOUS_SLOT && holder.getPage() > 0) {
+            target = holder.getPage() - 1;
+        } else if (rawSlot == NEXT_SLOT && holder.getPage() + 1 < holder.getPageCount()) {
+            target = holder.getPage() + 1;
+        } else {
+            return;
+        }
+        
+        LootCratesPlugin plugin = LootCratesPlugin.getInstance();
+        Crate crate = plugin.getCrateManager().get(holder.getCrateId());
+        if (crate != null) {
+            // Inventories must not be switched from inside the click event
+            Bukkit.getScheduler().runTask(plugin, () -> openPreview(player, crate, target));
+        }
+    }
+    
+    private static Preview buildPreview(Crate crate) {
+        MessageManager messages = LootCratesPlugin.getInstance().getMessageManager();
+        List<Reward> rewards = crate.getRewards();
+        
+        long totalWeight = 0;
+        for (Reward reward : rewards) {
+            totalWeight += reward.getWeight();
+        }
+        
+        List<ItemStack> items = new ArrayList<>(rewards.size());
+        for (Reward reward : rewards) {
+            items.add(createPreviewItem(messages, reward, totalWeight));
+        }
+        
+        ItemStack[][] pages;
+        if (items.size() <= INVENTORY_SIZE) {
+            pages = new ItemStack[][]{items.toArray(new ItemStack[INVENTORY_SIZE])};
+        } else {
+            int pageCount = (items.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+            pages = new ItemStack[pageCount][];
+            for (int page = 0; page < pageCount; page++) {
+                ItemStack[] contents = new ItemStack[INVENTORY_SIZE];
+                int from = page * PAGE_SIZE;
+                for (int i = from; i < Math.min(items.size(), from + PAGE_SIZE); i++) {
+                    contents[i - from] = items.get(i);
+                }
+                if (page > 0) {
+                    contents[PREVIOUS_SLOT] = createNavItem(Material.ARROW, messages.getMessage("gui.previous_page"));
+                }
+                contents[PAGE_INFO_SLOT] = createNavItem(Material.PAPER, messages.getMessage("gui.page_info",
+                    MessageManager.Placeholder.of("current", page + 1),
+                    MessageManager.Placeholder.of("total", pageCount)));
+                if (page + 1 < pageCount) {
+                    contents[NEXT_SLOT] = createNavItem(Material.ARROW, messages.getMessage("gui.next_page"));
+                }
+                pages[page] = contents;
+            }
+        }
+        
+        String title = messages.getMessage("preview.title",
+            MessageManager.Placeholder.of("crate_display", crate.getDisplay()));
+        return new Preview(crate, title, pages);
+    }
+    
+    private static ItemStack createPreviewItem(MessageManager messages, Reward reward, long totalWeight) {
+        if (reward.getDisplay() == null) {
+            return null;
+        }
+        
+        ItemStack displayItem = reward.getDisplay().clone();
+        ItemMeta meta = displayItem.getItemMeta();
+        
+        if (meta != null) {
+            List<String> lore = meta.hasLore() ? new ArrayList<>(meta.getLore()) : new ArrayList<>();
             
-            ItemStack displayItem = reward.getDisplay().clone();
-            ItemMeta meta = displayItem.getItemMeta();
+            // Add preview information
+            lore.add("");
+            lore.add(messages.getMessage("preview.reward_weight",
+                MessageManager.Placeholder.of("weight", reward.getWeight())));
             
-            if (meta != null) {
-                List<String> lore = meta.hasLore() ? new ArrayList<>(meta.getLore()) : new ArrayList<>();
-                
-                // Add preview information
-                lore.add("");
-                lore.add(ColorUtil.colorize("&7Weight: &f" + reward.getWeight()));
-                
-                String tier = reward.getTier();
-                if (tier != null) {
-                    String tierColor = getTierColor(tier);
-                    lore.add(ColorUtil.colorize("&7Tier: " + tierColor + tier.substring(0, 1).toUpperCase() + tier.substring(1).toLowerCase()));
-                }
-                
-                // Calculate percentage
-                int totalWeight = crate.getRewards().stream().mapToInt(Reward::getWeight).sum();
-                double percentage = totalWeight > 0 ? (double) reward.getWeight() / totalWeight * 100 : 0;
-                lore.add(ColorUtil.colorize("&7Chance: &f" + String.format("%.2f%%", percentage)));
-                
-                meta.setLore(lore);
-                displayItem.setItemMeta(meta);
+            String tier = reward.getTier();
+            if (tier != null && !tier.isEmpty()) {
+                lore.add(messages.getMessage("preview.reward_tier",
+                    MessageManager.Placeholder.of("tier_color", getTierColor(tier)),
+                    MessageManager.Placeholder.of("tier_name", tier.substring(0, 1).toUpperCase() + tier.substring(1).toLowerCase())));
             }
             
-            inventory.setItem(slot, displayItem);
-            slot++;
+            double percentage = totalWeight > 0 ? (double) reward.getWeight() / totalWeight * 100 : 0;
+            lore.add(messages.getMessage("preview.reward_chance",
+                MessageManager.Placeholder.of("percentage", String.format("%.2f", percentage))));
+            
+            meta.setLore(lore);
+            displayItem.setItemMeta(meta);
         }
         
-        player.openInventory(inventory);
+        return displayItem;
+    }
+    
+    private static ItemStack createNavItem(Material material, String name) {
+        ItemStack item = new ItemStack(material);
+        ItemMeta meta = item.getItemMeta();
+        if (meta != null) {
+            meta.setDisplayName(name);
+            item.setItemMeta(meta);
+        }
+        return item;
     }
     
     public static void openStats(Player player, Player target) {
-        String title = ColorUtil.colorize("&6&l" + target.getName() + "'s Stats");
+        String title = ColorUtil.colorizeUncached("&6&l" + target.getName() + "'s Stats");
         Inventory inventory = Bukkit.createInventory(null, 27, title);
         
         var playerData = LootCratesPlugin.getInstance().getPlayerDataManager().getPlayerData(target);
@@ -96,7 +205,7 @@ public class CrateGUI {
     }
     
     public static void openHistory(Player player, Player target) {
-        String title = ColorUtil.colorize("&6&l" + target.getName() + "'s History");
+        String title = ColorUtil.colorizeUncached("&6&l" + target.getName() + "'s History");
         Inventory inventory = Bukkit.createInventory(null, 54, title);
         
         // Implementation for opening history would go here
@@ -113,7 +222,7 @@ public class CrateGUI {
             meta.setDisplayName(ColorUtil.colorize(name));
             
             List<String> lore = new ArrayList<>();
-            lore.add(ColorUtil.colorize("&f" + value));
+            lore.add(ColorUtil.colorizeUncached("&f" + value));
             meta.setLore(lore);
             
             item.setItemMeta(meta);
@@ -135,4 +244,7 @@ public class CrateGUI {
             default -> "&7";
         };
     }
+    
+    private record Preview(Crate crate, String title, ItemStack[][] pages) {
+    }
 }
\ No newline at end of file
@@ -3,15 +3,19 @@ package com.lootcrates.command;
 import com.lootcrates.LootCratesPlugin;
 import com.lootcrates.crate.Crate;
 import com.lootcrates.crate.Reward;
-import com.lootcrates.economy.EconomyManager;
+import com.lootcrates.manager.RewardDeliveryManager;
 import com.lootcrates.util.MessageManager;
+import com.lootcrates.util.MetricsCollector;
+import com.lootcrates.util.OpenTracer;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.PlayerInventory;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.Locale;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -37,8 +41,9 @@ public final class CrateOpener {
             return;
         }
 
-        if (plugin.getCooldownManager().hasCooldown(player, crate.getId())) {
-            long remaining = plugin.getCooldownManager().getRemainingCooldown(player, crate.getId());
+        OpenTracer.Trace trace = plugin.getOpenTracer().begin();
+        if (plugin.getCooldownManager().hasCooldown(player, crate)) {
+            long remaining = plugin.getCooldownManager().getRemainingCooldown(player, crate);
             String formatted = plugin.getCooldownManager().formatTime(remaining);
             plugin.getMessageManager().sendMessageWithPrefix(player, "cooldowns.active",
                 MessageManager.Placeholder.of("time", formatted),
@@ -46,25 +51,102 @@ public final class CrateOpener {
             return;
         }
 
-        if (!searchInventory && !hasKeyInHand(player, crate)) {
-            if (!consumeKeyFromInventory(player, crate)) {
+        if (plugin.getVirtualKeyManager().isEnabled()) {
+            if (!plugin.getVirtualKeyManager().debit(player.getUniqueId(), crate, 1)) {
+                plugin.getMessageManager().sendMessageWithPrefix(player, "keys.no_key",
+                    MessageManager.Placeholder.of("crate_display", crate.getDisplay()));
+                return;
+            }
+        } else if (!searchInventory && !hasKeyInHand(player, crate)) {
+            if (!consumeKeyFromInventory(plugin, player, crate)) {
                 plugin.getMessageManager().sendMessageWithPrefix(player, "keys.no_key",
                     MessageManager.Placeholder.of("crate_display", crate.getDisplay()));
                 return;
             }
         } else {
-            if (!consumeKeyFromInventory(player, crate)) {
+            if (!consumeKeyFromInventory(plugin, player, crate)) {
                 plugin.getMessageManager().sendMessageWithPrefix(player, "keys.no_key",
                     MessageManager.Placeholder.of("crate_display", crate.getDisplay()));
                 return;
             }
         }
+        trace.mark(OpenTracer.Phase.KEYS);
 
-        openCrate(plugin, player, crate, true);
+        openCrate(plugin, player, crate, true, trace);
+    }
+
+    /**
+     * Opens up to {@code amount} crates at once, e.g. on shift-click. Keys are taken in one
+     * inventory pass and the rewards of all rolls are merged and delivered together, followed
+     * by one summary message and one statistics update. Crates with a cooldown open once.
+     * @return the number of crates opened
+     */
+    public static int openMany(LootCratesPlugin plugin, Player player, Crate crate, int amount) {
+        if (plugin == null || player == null || crate == null || amount <= 0) {
+            return 0;
+        }
+
+        if (plugin.getCooldownManager().hasCooldown(player, crate)) {
+            long remaining = plugin.getCooldownManager().getRemainingCooldown(player, crate);
+            String formatted = plugin.getCooldownManager().formatTime(remaining);
+            plugin.getMessageManager().sendMessageWithPrefix(player, "cooldowns.active",
+                MessageManager.Placeholder.of("time", formatted),
+                MessageManager.Placeholder.of("crate_display", crate.getDisplay()));
+            return 0;
+        }
+
+        OpenTracer.Trace trace = plugin.getOpenTracer().begin();
+        int limit = Math.min(amount, Math.max(1, plugin.getConfig().getInt("settings.bulk_open.max", 64)));
+        if (crate.getCooldown() > 0) {
+            // Every open starts the cooldown again
+            limit = 1;
+        }
+
+        int opened;
+        if (plugin.getVirtualKeyManager().isEnabled()) {
+            opened = Math.min(limit, plugin.getVirtualKeyManager().getBalance(player.getUniqueId(), crate));
+            if (opened > 0 && !plugin.getVirtualKeyManager().debit(player.getUniqueId(), crate, opened)) {
+                opened = 0;
+            }
+        } else {
+            opened = consumeKeysFromInventory(plugin, player, crate, limit);
+        }
+
+        if (opened == 0) {
+            plugin.getMessageManager().sendMessageWithPrefix(player, "keys.no_key",
+                MessageManager.Placeholder.of("crate_display", crate.getDisplay()));
+            return 0;
+        }
+
+        trace.mark(OpenTracer.Phase.KEYS);
+
+        openBatch(plugin, player, crate, opened, trace);
+
+        if (crate.getCooldown() > 0) {
+            plugin.getCooldownManager().setCooldown(player, crate, crate.getCooldown());
+        }
+        trace.mark(OpenTracer.Phase.COOLDOWN);
+        trace.finish(player, crate, opened);
+        return opened;
     }
 
     public static void forceOpen(LootCratesPlugin plugin, Player player, Crate crate) {
-        openCrate(plugin, player, crate, false);
+        if (plugin != null) {
+            openCrate(plugin, player, crate, false, plugin.getOpenTracer().begin());
+        }
+    }
+
+    /**
+     * Opens a crate {@code count} times without keys or cooldown, delivering the rewards together.
+     */
+    public static void forceOpenMany(LootCratesPlugin plugin, Player player, Crate crate, int count) {
+        if (count == 1) {
+            forceOpen(plugin, player, crate);
+        } else if (plugin != null && player != null && crate != null && count > 1) {
+            OpenTracer.Trace trace = plugin.getOpenTracer().begin();
+            openBatch(plugin, player, crate, count, trace);
+            trace.finish(player, crate, count);
+        }
     }
 
     public static void handleCloseDuringRoll(Player player) {
@@ -73,156 +155,267 @@ public final class CrateOpener {
         }
     }
 
-    private static void openCrate(LootCratesPlugin plugin, Player player, Crate crate, boolean consumeCooldown) {
+    private static void openCrate(LootCratesPlugin plugin, Player player, Crate crate, boolean consumeCooldown,
+                                  OpenTracer.Trace trace) {
         if (plugin == null || player == null || crate == null) {
             return;
         }
 
+        long start = System.nanoTime();
         activeRolls.put(player.getUniqueId(), crate);
+        try {
+            Reward reward = selectReward(plugin, player, crate);
+            trace.mark(OpenTracer.Phase.ROLL);
+            giveReward(plugin, player, crate, reward, trace);
 
-        Reward reward = selectReward(plugin, player, crate);
-        giveReward(plugin, player, crate, reward);
-
-        if (consumeCooldown && crate.getCooldown() > 0) {
-            plugin.getCooldownManager().setCooldown(player, crate.getId(), crate.getCooldown());
+            if (consumeCooldown && crate.getCooldown() > 0) {
+                plugin.getCooldownManager().setCooldown(player, crate, crate.getCooldown());
+            }
+            trace.mark(OpenTracer.Phase.COOLDOWN);
+        } finally {
+            activeRolls.remove(player.getUniqueId());
         }
+        plugin.getMetrics().recordCrateOpen(crate);
+        plugin.getMetrics().recordSince(MetricsCollector.Stage.OPEN, start);
+        trace.finish(player, crate, 1);
+    }
 
-        activeRolls.remove(player.getUniqueId());
+    private static void openBatch(LootCratesPlugin plugin, Player player, Crate crate, int count, OpenTracer.Trace trace) {
+        long start = System.nanoTime();
+        activeRolls.put(player.getUniqueId(), crate);
+        RewardBatch batch = new RewardBatch();
+        try {
+            for (int i = 0; i < count; i++) {
+                Reward reward = selectReward(plugin, player, crate);
+                if (reward == null) {
+                    plugin.getLogger().warning("No reward generated for crate " + crate.getId());
+                    continue;
+                }
+                batch.add(player, crate, reward);
+            }
+            trace.mark(OpenTracer.Phase.ROLL);
+            batch.deliver(plugin, player);
+            trace.mark(OpenTracer.Phase.DELIVERY);
+
+            plugin.getPlayerDataManager().updatePlayerOpening(player, crate.getId(), batch.opens,
+                batch.statsMoney, batch.statsItems, batch.rareFinds);
+            trace.mark(OpenTracer.Phase.STATS);
+
+            plugin.getMessageManager().sendMessageWithPrefix(player, "rewards.bulk_opened",
+                MessageManager.Placeholder.of("count", count),
+                MessageManager.Placeholder.of("crate_display", crate.getDisplay()),
+                MessageManager.Placeholder.of("rewards", batch.summary()));
+            trace.mark(OpenTracer.Phase.MESSAGE);
+        } finally {
+            activeRolls.remove(player.getUniqueId());
+        }
+        plugin.getMetrics().recordCrateOpens(crate, batch.opens);
+        plugin.getMetrics().recordSince(MetricsCollector.Stage.OPEN, start);
     }
 
     private static boolean hasKeyInHand(Player player, Crate crate) {
-        ItemStack keyTemplate = crate.getKey().createItem(1);
-        ItemStack mainHand = player.getInventory().getItemInMainHand();
-        return mainHand != null && mainHand.isSimilar(keyTemplate);
+        return crate.getKey().matches(player.getInventory().getItemInMainHand());
     }
 
-    private static boolean consumeKeyFromInventory(Player player, Crate crate) {
-        ItemStack template = crate.getKey().createItem(1);
+    private static boolean consumeKeyFromInventory(LootCratesPlugin plugin, Player player, Crate crate) {
+        return consumeKeysFromInventory(plugin, player, crate, 1) == 1;
+    }
+
+    /**
+     * Takes up to {@code max} keys in a single pass over the inventory.
+     * @return the number of keys taken
+     */
+    private static int consumeKeysFromInventory(LootCratesPlugin plugin, Player player, Crate crate, int max) {
+        Crate.KeyDef key = crate.getKey();
         PlayerInventory inventory = player.getInventory();
+        int taken = 0;
 
-        for (int slot = 0; slot < inventory.getSize(); slot++) {
+        for (int slot = 0; slot < inventory.getSize() && taken < max; slot++) {
             ItemStack item = inventory.getItem(slot);
-            if (item == null || !item.isSimilar(template)) {
+            if (!key.matches(item)) {
                 continue;
             }
 
             int amount = item.getAmount();
-            if (amount <= 1) {
+            int take = Math.min(amount, max - taken);
+            if (take >= amount) {
                 inventory.setItem(slot, null);
             } else {
-                item.setAmount(amount - 1);
+                item.setAmount(amount - take);
             }
-            return true;
+            taken += take;
         }
 
-        return false;
+        if (taken > 0) {
+            plugin.getKeyCountManager().adjust(player, crate, -taken);
+        }
+        return taken;
     }
 
     private static Reward selectReward(LootCratesPlugin plugin, Player player, Crate crate) {
+        long start = System.nanoTime();
         Reward reward;
-        Random random = plugin.getCrateManager().rng();
+        Random random = plugin.getCrateManager().rng(player, crate);
 
         if (plugin.getPityManager().shouldTriggerPity(player, crate)) {
             reward = plugin.getPityManager().rollWithPity(player, crate, random);
-            plugin.getPityManager().resetPity(player, crate.getId());
+            plugin.getPityManager().resetPity(player, crate);
+            plugin.getMetrics().recordPityTrigger(crate);
         } else {
             reward = crate.roll(random);
-            plugin.getPityManager().incrementPity(player, crate.getId());
+            plugin.getPityManager().incrementPity(player, crate);
         }
 
+        plugin.getMetrics().recordSince(MetricsCollector.Stage.ROLL, start);
+        plugin.getMetrics().recordReward(crate, reward);
         return reward;
     }
 
-    private static void giveReward(LootCratesPlugin plugin, Player player, Crate crate, Reward reward) {
+    private static void giveReward(LootCratesPlugin plugin, Player player, Crate crate, Reward reward, OpenTracer.Trace trace) {
         if (reward == null) {
             plugin.getLogger().warning("No reward generated for crate " + crate.getId());
             return;
         }
 
-        switch (reward.getType()) {
-            case MONEY_XP -> {
-                EconomyManager economy = plugin.getEconomyManager();
-                if (economy != null && reward.money > 0) {
-                    economy.deposit(player, reward.money);
-                }
-                if (reward.xp > 0) {
-                    player.giveExp(reward.xp);
-                }
-            }
-            case MONEY -> {
-                EconomyManager economy = plugin.getEconomyManager();
-                if (economy != null && reward.getAmount() > 0) {
-                    economy.deposit(player, reward.getAmount());
-                }
-            }
-            case EXPERIENCE -> {
-                if (reward.getAmount() > 0) {
-                    player.giveExp((int) reward.getAmount());
+        RewardBatch batch = new RewardBatch();
+        batch.add(player, crate, reward);
+        batch.deliver(plugin, player);
+        trace.mark(OpenTracer.Phase.DELIVERY);
+
+        plugin.getPlayerDataManager().updatePlayerOpening(player, crate.getId(), reward.money, reward.getItems().size(), isRareReward(reward));
+        trace.mark(OpenTracer.Phase.STATS);
+
+        plugin.getMessageManager().sendMessageWithPrefix(player, "rewards.reward_received",
+            MessageManager.Placeholder.of("reward", rewardName(reward)));
+        trace.mark(OpenTracer.Phase.MESSAGE);
+    }
+
+    private static String rewardName(Reward reward) {
+        String rewardName = reward.getId();
+        if (reward.getDisplay() != null && reward.getDisplay().getItemMeta() != null && reward.getDisplay().getItemMeta().hasDisplayName()) {
+            rewardName = reward.getDisplay().getItemMeta().getDisplayName();
+        }
+        return rewardName;
+    }
+
+    private static boolean isRareReward(Reward reward) {
+        if (reward.getTierLevel().isRare()) {
+            return true;
+        }
+        return SPECIAL_REWARD_TYPES.contains(reward.getType());
+    }
+
+    /**
+     * Rewards of one or more opens, merged so they can be delivered in one pass: identical
+     * items are stacked, money, XP and points are summed and keys are granted once per crate.
+     */
+    private static final class RewardBatch {
+        private final List<ItemStack> items = new ArrayList<>();
+        private final List<String> commands = new ArrayList<>();
+        private final Map<String, Integer> keys = new LinkedHashMap<>();
+        private final Map<String, Integer> rewardCounts = new LinkedHashMap<>();
+        private double money;
+        private int xp;
+        private int points;
+        private int opens;
+        private double statsMoney;
+        private int statsItems;
+        private int rareFinds;
+
+        private void add(Player player, Crate crate, Reward reward) {
+            switch (reward.getType()) {
+                case MONEY_XP -> {
+                    money += Math.max(0, reward.money);
+                    xp += Math.max(0, reward.xp);
                 }
-            }
-            case ITEM, SPECIAL_ITEM, BUNDLE, SPECIALITEM, SPECIALITEM_CHOICE, SPECIALITEM_SET -> {
-                for (ItemStack item : reward.getItems()) {
-                    if (item == null) {
-                        continue;
+                case MONEY -> money += Math.max(0, reward.getAmount());
+                case EXPERIENCE -> xp += Math.max(0, (int) reward.getAmount());
+                case ITEM, SPECIAL_ITEM, BUNDLE, SPECIALITEM, SPECIALITEM_CHOICE, SPECIALITEM_SET -> {
+                    for (ItemStack item : reward.getItems()) {
+                        if (item != null) {
+                            addItem(item);
+                        }
                     }
-                    Map<Integer, ItemStack> leftover = player.getInventory().addItem(item.clone());
-                    leftover.values().forEach(it -> player.getWorld().dropItemNaturally(player.getLocation(), it));
+                    money += Math.max(0, reward.money);
+                    xp += Math.max(0, reward.xp);
                 }
-
-                if (reward.money > 0) {
-                    EconomyManager economy = plugin.getEconomyManager();
-                    if (economy != null) {
-                        economy.deposit(player, reward.money);
+                case COMMAND -> {
+                    if (reward.getCommands() != null) {
+                        for (String command : reward.getCommands()) {
+                            commands.add(command
+                                .replace("{player}", player.getName())
+                                .replace("{crate}", crate.getId())
+                                .replace("{crate_display}", crate.getDisplay()));
+                        }
                     }
                 }
-
-                if (reward.xp > 0) {
-                    player.giveExp(reward.xp);
+                case KEY -> {
+                    String targetCrate = reward.getKeyCrate() != null ? reward.getKeyCrate() : crate.getId();
+                    keys.merge(targetCrate, reward.getKeyAmount(), Integer::sum);
                 }
-            }
-            case COMMAND -> {
-                if (reward.getCommands() != null) {
-                    for (String command : reward.getCommands()) {
-                        String parsed = command
-                            .replace("{player}", player.getName())
-                            .replace("{crate}", crate.getId())
-                            .replace("{crate_display}", crate.getDisplay());
-                        Bukkit.dispatchCommand(Bukkit.getConsoleSender(), parsed);
+                case CURRENCY -> {
+                    if ("PLAYER_POINTS".equalsIgnoreCase(reward.getCurrencyType())) {
+                        points += (int) Math.round(reward.getAmount());
                     }
                 }
             }
-            case KEY -> {
-                String targetCrate = reward.getKeyCrate() != null ? reward.getKeyCrate() : crate.getId();
-                plugin.getCrateManager().giveKey(player, targetCrate, reward.getKeyAmount());
+
+            opens++;
+            statsMoney += reward.money;
+            statsItems += reward.getItems().size();
+            if (isRareReward(reward)) {
+                rareFinds++;
             }
-            case CURRENCY -> {
-                if ("PLAYER_POINTS".equalsIgnoreCase(reward.getCurrencyType())) {
-                    EconomyManager economy = plugin.getEconomyManager();
-                    if (economy != null) {
-                        economy.addPlayerPoints(player, (int) Math.round(reward.getAmount()));
-                    }
+            rewardCounts.merge(rewardName(reward), 1, Integer::sum);
+        }
+
+        private void addItem(ItemStack item) {
+            for (ItemStack existing : items) {
+                if (existing.isSimilar(item)) {
+                    existing.setAmount(existing.getAmount() + item.getAmount());
+                    return;
                 }
             }
+            items.add(item.clone());
         }
 
-        plugin.getPlayerDataManager().updatePlayerOpening(player, crate.getId(), reward.money, reward.getItems().size(), isRareReward(reward));
+        private void deliver(LootCratesPlugin plugin, Player player) {
+            if (!items.isEmpty()) {
+                // Merged stacks can exceed the maximum stack size, split them before handing out
+                List<ItemStack> stacks = new ArrayList<>();
+                for (ItemStack item : items) {
+                    int maxStack = Math.max(1, item.getMaxStackSize());
+                    for (int remaining = item.getAmount(); remaining > 0; remaining -= maxStack) {
+                        stacks.add(item.asQuantity(Math.min(maxStack, remaining)));
+                    }
+                }
+                Map<Integer, ItemStack> leftover = player.getInventory().addItem(stacks.toArray(new ItemStack[0]));
+                leftover.values().forEach(it -> player.getWorld().dropItemNaturally(player.getLocation(), it));
+            }
 
-        String rewardName = reward.getId();
-        if (reward.getDisplay() != null && reward.getDisplay().getItemMeta() != null && reward.getDisplay().getItemMeta().hasDisplayName()) {
-            rewardName = reward.getDisplay().getItemMeta().getDisplayName();
-        }
+            // Economy calls can block, they are coalesced and applied by the delivery task
+            RewardDeliveryManager delivery = plugin.getRewardDeliveryManager();
+            delivery.queueMoney(player, money);
+            delivery.queuePoints(player, points);
+            delivery.queueExperience(player, xp);
 
-        plugin.getMessageManager().sendMessageWithPrefix(player, "rewards.reward_received",
-            MessageManager.Placeholder.of("reward", rewardName));
-    }
+            for (String command : commands) {
+                Bukkit.dispatchCommand(Bukkit.getConsoleSender(), command);
+            }
+            for (Map.Entry<String, Integer> entry : keys.entrySet()) {
+                plugin.getCrateManager().giveKey(player, entry.getKey(), entry.getValue());
+            }
+        }
 
-    private static boolean isRareReward(Reward reward) {
-        if (reward.getTier() != null) {
-            String tier = reward.getTier().toLowerCase(Locale.ROOT);
-            if (tier.contains("rare") || tier.contains("legendary") || tier.contains("mythic")) {
-                return true;
+        private String summary() {
+            StringBuilder builder = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : rewardCounts.entrySet()) {
+                if (builder.length() > 0) {
+                    builder.append("&7, &f");
+                }
+                builder.append(entry.getValue()).append("x ").append(entry.getKey());
             }
+            return builder.toString();
         }
-        return SPECIAL_REWARD_TYPES.contains(reward.getType());
     }
 }
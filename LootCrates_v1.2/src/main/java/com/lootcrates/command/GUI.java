@@ -30,6 +30,20 @@ public final class GUI {
         CrateOpener.tryOpenWithKey(plugin, player, crate, searchInventory);
     }
 
+    public static int openMany(LootCratesPlugin plugin, Player player, Crate crate, int amount) {
+        if (plugin == null || player == null || crate == null) {
+            return 0;
+        }
+        return CrateOpener.openMany(plugin, player, crate, amount);
+    }
+
+    public static void handlePreviewClick(Player player, PreviewHolder holder, int rawSlot) {
+        if (player == null || holder == null) {
+            return;
+        }
+        CrateGUI.handlePreviewClick(player, holder, rawSlot);
+    }
+
     public static void handleCloseDuringRoll(Player player) {
         if (player == null) {
             return;
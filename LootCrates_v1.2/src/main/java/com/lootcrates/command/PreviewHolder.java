@@ -0,0 +1,42 @@
+package com.lootcrates.command;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+/**
+ * Marks a crate preview inventory and remembers which page of which crate it shows.
+ */
+public class PreviewHolder implements InventoryHolder {
+
+    private final String crateId;
+    private final int page;
+    private final int pageCount;
+    private Inventory inventory;
+
+    PreviewHolder(String crateId, int page, int pageCount) {
+        this.crateId = crateId;
+        this.page = page;
+        this.pageCount = pageCount;
+    }
+
+    public String getCrateId() {
+        return crateId;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    void setInventory(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+}
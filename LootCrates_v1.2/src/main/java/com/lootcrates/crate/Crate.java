@@ -1,31 +1,51 @@
 package com.lootcrates.crate;
 
+import com.lootcrates.LootCratesPlugin;
 import com.lootcrates.util.ColorUtil;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.MemoryConfiguration;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataType;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 public class Crate {
     
+    public static final Set<RewardTier> DEFAULT_PITY_TIERS = Collections.unmodifiableSet(EnumSet.of(
+        RewardTier.RARE, RewardTier.LEGENDARY, RewardTier.MYTHIC));
+    
+    // Rewards of these types are always in the pity pool, whatever their tier
+    private static final Set<Reward.Type> PITY_REWARD_TYPES = EnumSet.of(
+        Reward.Type.SPECIAL_ITEM,
+        Reward.Type.SPECIALITEM,
+        Reward.Type.SPECIALITEM_CHOICE,
+        Reward.Type.SPECIALITEM_SET
+    );
+    
     private final String id;
+    private int index = -1;
     private final String display;
     private final String tier;
     private final KeyDef key;
     private final OpenMethod openMethod;
     private final List<Reward> rewards = new ArrayList<>();
+    // Rebuilt on the thread that changes the rewards; read by whichever thread rolls
+    private volatile WeightedSampler sampler = WeightedSampler.EMPTY;
     
     // Restrictions
     private final boolean enabled;
@@ -37,6 +57,8 @@ public class Crate {
     private final boolean pityEnabled;
     private final int pityThreshold;
     private final double rareWeightMultiplier;
+    private Set<RewardTier> pityTiers = DEFAULT_PITY_TIERS;
+    private volatile WeightedSampler pitySampler = WeightedSampler.EMPTY;
     
     // Animation settings
     private final boolean animationEnabled;
@@ -94,13 +116,25 @@ public class Crate {
     }
 
     public static class KeyDef {
+        private static NamespacedKey crateTag;
+
+        private final String crateId;
         private final String display;
         private final Material material;
         private final Integer customModelData;
         private final List<String> lore;
         private final boolean glow;
 
+        // Built lazily once per definition; a reload creates new definitions
+        private volatile ItemStack template;
+        private volatile ItemStack legacyTemplate;
+
         public KeyDef(String display, Material material, Integer customModelData, List<String> lore, boolean glow) {
+            this(null, display, material, customModelData, lore, glow);
+        }
+
+        public KeyDef(String crateId, String display, Material material, Integer customModelData, List<String> lore, boolean glow) {
+            this.crateId = crateId != null ? crateId.toUpperCase(Locale.ROOT) : null;
             this.display = display;
             this.material = material;
             this.customModelData = customModelData;
@@ -108,10 +142,70 @@ public class Crate {
             this.glow = glow;
         }
 
+        /**
+         * Persistent data key under which key items store the id of their crate.
+         */
+        public static NamespacedKey crateTag() {
+            NamespacedKey tag = crateTag;
+            if (tag == null) {
+                tag = new NamespacedKey(LootCratesPlugin.getInstance(), "crate_key");
+                crateTag = tag;
+            }
+            return tag;
+        }
+
         public ItemStack createItem(int amount) {
-            ItemStack item = new ItemStack(material, amount);
+            ItemStack item = template().clone();
+            item.setAmount(amount);
+            return item;
+        }
+
+        /**
+         * Checks whether the given item is a key for this crate.
+         * Tagged keys are identified by their crate id alone; keys handed out before
+         * tagging was introduced fall back to a full similarity check.
+         */
+        public boolean matches(ItemStack item) {
+            if (item == null || item.getType() != material || !item.hasItemMeta()) {
+                return false;
+            }
+
+            ItemMeta meta = item.getItemMeta();
+            if (meta != null && crateId != null) {
+                String tagged = meta.getPersistentDataContainer().get(crateTag(), PersistentDataType.STRING);
+                if (tagged != null) {
+                    return tagged.equals(crateId);
+                }
+            }
+
+            return item.isSimilar(legacyTemplate());
+        }
+
+        private ItemStack template() {
+            ItemStack item = template;
+            if (item == null) {
+                item = buildItem(true);
+                template = item;
+            }
+            return item;
+        }
+
+        private ItemStack legacyTemplate() {
+            ItemStack item = legacyTemplate;
+            if (item == null) {
+                item = crateId != null ? buildItem(false) : template();
+                legacyTemplate = item;
+            }
+            return item;
+        }
+
+        private ItemStack buildItem(boolean tagged) {
+            ItemStack item = new ItemStack(material, 1);
             ItemMeta meta = item.getItemMeta();
             if (meta != null) {
+                if (tagged && crateId != null) {
+                    meta.getPersistentDataContainer().set(crateTag(), PersistentDataType.STRING, crateId);
+                }
                 meta.setDisplayName(ColorUtil.colorize(display));
                 if (customModelData != null) {
                     meta.setCustomModelData(customModelData);
@@ -133,6 +227,7 @@ public class Crate {
         }
         
         // Getters
+        public String getCrateId() { return crateId; }
         public String getDisplay() { return display; }
         public Material getMaterial() { return material; }
         public Integer getCustomModelData() { return customModelData; }
@@ -154,7 +249,7 @@ public class Crate {
         List<String> keyLore = keySection.getStringList("lore");
         boolean keyGlow = keySection.getBoolean("glow", false);
         
-        KeyDef keyDef = new KeyDef(keyDisplay, keyMaterial, customModelData, keyLore, keyGlow);
+        KeyDef keyDef = new KeyDef(id, keyDisplay, keyMaterial, customModelData, keyLore, keyGlow);
         
         // Open method
         String methodString = sec.getString("open_method", "BLOCK");
@@ -169,7 +264,17 @@ public class Crate {
         ConfigurationSection pitySection = sec.getConfigurationSection("pity");
         boolean pityEnabled = pitySection != null && pitySection.getBoolean("enabled", false);
         int pityThreshold = pitySection != null ? pitySection.getInt("threshold", 10) : 10;
-        double rareWeightMultiplier = pitySection != null ? pitySection.getDouble("rare_weight_multiplier", 2.0) : 2.0;
+        // tier_weight_multiplier was called rare_weight_multiplier before; old configs keep working
+        double rareWeightMultiplier = pitySection != null
+            ? pitySection.getDouble("tier_weight_multiplier", pitySection.getDouble("rare_weight_multiplier", 2.0))
+            : 2.0;
+        Set<RewardTier> pityTiers = DEFAULT_PITY_TIERS;
+        if (pitySection != null && pitySection.isList("tiers")) {
+            pityTiers = EnumSet.noneOf(RewardTier.class);
+            for (String tierName : pitySection.getStringList("tiers")) {
+                pityTiers.add(RewardTier.parse(tierName));
+            }
+        }
         
         // Animation settings
         ConfigurationSection animSection = sec.getConfigurationSection("animation");
@@ -212,6 +317,7 @@ public class Crate {
             animationEnabled, animationSpeed, animationDuration, animationStyle,
             hologramEnabled, hologramHeight, hologramLines,
             availableFrom, availableUntil);
+        crate.pityTiers = pityTiers;
         
         // Load locations
         if (sec.isList("locations")) {
@@ -255,26 +361,79 @@ public class Crate {
             }
         }
         
+        crate.rebuildSampler();
         return crate;
     }
 
-    public Reward roll(Random rng) {
-        if (rewards.isEmpty()) {
-            throw new IllegalStateException("Crate " + id + " has no rewards configured!");
+    /**
+     * Adds a reward and rebuilds the sampling tables.
+     */
+    public void addReward(Reward reward) {
+        rewards.add(reward);
+        rebuildSampler();
+    }
+
+    /**
+     * Removes a reward and rebuilds the sampling tables.
+     * @return true if the crate had the reward
+     */
+    public boolean removeReward(Reward reward) {
+        boolean removed = rewards.remove(reward);
+        if (removed) {
+            rebuildSampler();
         }
+        return removed;
+    }
+
+    /**
+     * Rebuilds the precomputed sampling tables from the current rewards.
+     */
+    public void rebuildSampler() {
+        this.sampler = WeightedSampler.of(rewards);
         
-        int total = rewards.stream().mapToInt(Reward::getWeight).sum();
-        int pick = rng.nextInt(Math.max(total, 1)) + 1;
-        int cumulative = 0;
-        
+        // Pity pool: rewards of a pity tier, weighted up against the special items that share the pool
+        List<Reward> pool = new ArrayList<>();
         for (Reward reward : rewards) {
-            cumulative += reward.getWeight();
-            if (pick <= cumulative) {
-                return reward;
+            if (reward != null && (isPityTier(reward) || PITY_REWARD_TYPES.contains(reward.getType()))) {
+                pool.add(reward);
             }
         }
+        this.pitySampler = WeightedSampler.of(pool, this::pityWeight);
+    }
+    
+    private boolean isPityTier(Reward reward) {
+        return pityTiers.contains(reward.getTierLevel());
+    }
+    
+    /**
+     * Weight of a reward in the pity pool. Every pity tier reward is scaled by the same factor,
+     * so their odds among each other stay as configured; the multiplier only shifts the pool
+     * from special items towards pity tier rewards.
+     */
+    private int pityWeight(Reward reward) {
+        if (reward.getWeight() <= 0 || !isPityTier(reward)) {
+            return reward.getWeight();
+        }
+        long boosted = Math.round(reward.getWeight() * Math.max(0.0, rareWeightMultiplier));
+        // Capped so the boosted total cannot overflow the sampler's int table
+        return (int) Math.max(1L, Math.min(Integer.MAX_VALUE / Math.max(1, rewards.size()), boosted));
+    }
+
+    public Reward roll(Random rng) {
+        WeightedSampler current = sampler;
+        if (current.isEmpty()) {
+            throw new IllegalStateException("Crate " + id + " has no rewards configured!");
+        }
         
-        return rewards.get(0); // Fallback
+        return current.sample(rng);
+    }
+    
+    /**
+     * Rolls from the precomputed pity pool.
+     * @return null if no reward of this crate qualifies for pity
+     */
+    public Reward rollPity(Random rng) {
+        return pitySampler.sample(rng);
     }
     
     public boolean isAvailable() {
@@ -295,20 +454,29 @@ public class Crate {
         return true;
     }
     
+    void setIndex(int index) {
+        this.index = index;
+    }
+    
     // Getters
     public String getId() { return id; }
+    public int getIndex() { return index; }
     public String getDisplay() { return display; }
     public String getTier() { return tier; }
     public KeyDef getKey() { return key; }
     public OpenMethod getOpenMethod() { return openMethod; }
-    public List<Reward> getRewards() { return rewards; }
+    /** Read-only view; use {@link #addReward} and {@link #removeReward} so the samplers stay in sync. */
+    public List<Reward> getRewards() { return Collections.unmodifiableList(rewards); }
+    public int getTotalWeight() { return sampler.getTotalWeight(); }
     public boolean isEnabled() { return enabled; }
     public long getCooldown() { return cooldown; }
     public int getDailyLimit() { return dailyLimit; }
     public String getRequiredPermission() { return requiredPermission; }
     public boolean isPityEnabled() { return pityEnabled; }
     public int getPityThreshold() { return pityThreshold; }
+    /** Weight factor of pity tier rewards against special items in the pity pool. */
     public double getRareWeightMultiplier() { return rareWeightMultiplier; }
+    public Set<RewardTier> getPityTiers() { return pityTiers; }
     public boolean isAnimationEnabled() { return animationEnabled; }
     public int getAnimationSpeed() { return animationSpeed; }
     public int getAnimationDuration() { return animationDuration; }
@@ -1,14 +1,21 @@
 package com.lootcrates.crate;
 
 import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.command.CrateGUI;
 import com.lootcrates.util.ColorUtil;
+import com.lootcrates.manager.KeyCountManager;
+import com.lootcrates.manager.VirtualKeyManager;
+import org.bukkit.Material;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.persistence.PersistentDataType;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
@@ -20,7 +27,11 @@ public class CrateManager {
 
     private final LootCratesPlugin plugin;
     private final Map<String, Crate> crates = new ConcurrentHashMap<>();
-    private final Random random = new Random();
+    // Crate ids are interned to stable indices that survive reloads
+    private final Map<String, Integer> crateIndices = new ConcurrentHashMap<>();
+    private volatile String[] indexedIds = new String[0];
+    private volatile Set<Material> keyMaterials = EnumSet.noneOf(Material.class);
+    private volatile RandomProvider randomProvider = new RandomProvider(RandomProvider.Mode.THREAD_LOCAL, 0L, null);
 
     public CrateManager(LootCratesPlugin plugin) {
         this.plugin = plugin;
@@ -30,6 +41,11 @@ public class CrateManager {
     public void reload() {
         crates.clear();
 
+        randomProvider = RandomProvider.fromConfig(plugin.getConfig().getConfigurationSection("settings.rng"), plugin.getLogger());
+        if (randomProvider.getMode() == RandomProvider.Mode.SEEDED) {
+            plugin.getLogger().info("Using seeded crate rolls (seed " + randomProvider.getSeed() + ").");
+        }
+
         loadFromConfiguration(plugin.getConfig());
 
         File crateFolder = new File(plugin.getDataFolder(), "crates");
@@ -47,6 +63,21 @@ public class CrateManager {
             }
         }
 
+        Set<Material> materials = EnumSet.noneOf(Material.class);
+        for (Crate crate : crates.values()) {
+            if (crate.getKey().getMaterial() != null) {
+                materials.add(crate.getKey().getMaterial());
+            }
+        }
+        keyMaterials = materials;
+
+        CrateGUI.rebuildPreviews(crates.values());
+
+        KeyCountManager keyCounts = plugin.getKeyCountManager();
+        if (keyCounts != null) {
+            keyCounts.invalidateAll();
+        }
+
         plugin.getLogger().info("Loaded " + crates.size() + " crates.");
     }
 
@@ -68,6 +99,7 @@ public class CrateManager {
 
             try {
                 Crate crate = Crate.fromConfig(id, crateSection);
+                crate.setIndex(intern(crate.getId()));
                 crates.put(crate.getId(), crate);
             } catch (Exception ex) {
                 plugin.getLogger().log(Level.SEVERE, "Failed to load crate " + id, ex);
@@ -86,8 +118,113 @@ public class CrateManager {
         return crates.get(id.toUpperCase(Locale.ROOT));
     }
 
+    private synchronized int intern(String crateId) {
+        Integer existing = crateIndices.get(crateId);
+        if (existing != null) {
+            return existing;
+        }
+
+        int index = indexedIds.length;
+        String[] ids = Arrays.copyOf(indexedIds, index + 1);
+        ids[index] = crateId;
+        indexedIds = ids;
+        crateIndices.put(crateId, index);
+        return index;
+    }
+
+    /**
+     * Stable index of a crate id, or -1 if the id was never loaded.
+     */
+    public int indexOf(String crateId) {
+        if (crateId == null) {
+            return -1;
+        }
+        Integer index = crateIndices.get(crateId);
+        if (index == null) {
+            index = crateIndices.get(crateId.toUpperCase(Locale.ROOT));
+        }
+        return index != null ? index : -1;
+    }
+
+    public String idAt(int index) {
+        String[] ids = indexedIds;
+        return index >= 0 && index < ids.length ? ids[index] : null;
+    }
+
+    /**
+     * Number of crate ids interned so far; every index is below this value.
+     */
+    public int indexCount() {
+        return indexedIds.length;
+    }
+
+    /**
+     * Identifies which crate the given item is a key for.
+     * @return the crate or null if the item is not a key
+     */
+    public Crate findKeyCrate(ItemStack item) {
+        if (item == null || !keyMaterials.contains(item.getType()) || !item.hasItemMeta()) {
+            return null;
+        }
+
+        var meta = item.getItemMeta();
+        String tagged = meta != null
+            ? meta.getPersistentDataContainer().get(Crate.KeyDef.crateTag(), PersistentDataType.STRING)
+            : null;
+        if (tagged != null) {
+            return crates.get(tagged);
+        }
+
+        for (Crate crate : crates.values()) {
+            if (crate.getKey().matches(item)) {
+                return crate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of keys the player holds for a crate, either as virtual balance or as items.
+     */
+    public int getKeyCount(Player player, Crate crate) {
+        if (player == null || crate == null) {
+            return 0;
+        }
+
+        VirtualKeyManager virtualKeys = plugin.getVirtualKeyManager();
+        if (virtualKeys != null && virtualKeys.isEnabled()) {
+            return virtualKeys.getBalance(player.getUniqueId(), crate);
+        }
+        return plugin.getKeyCountManager().getKeyCount(player, crate);
+    }
+
+    /**
+     * Like {@link #getKeyCount}, but scans the inventory instead of reading the cached counts.
+     */
+    public int countKeys(Player player, Crate crate) {
+        if (player == null || crate == null) {
+            return 0;
+        }
+
+        VirtualKeyManager virtualKeys = plugin.getVirtualKeyManager();
+        if (virtualKeys != null && virtualKeys.isEnabled()) {
+            return virtualKeys.getBalance(player.getUniqueId(), crate);
+        }
+        return plugin.getKeyCountManager().countKeys(player, crate);
+    }
+
     public Random rng() {
-        return random;
+        return randomProvider.shared();
+    }
+
+    public Random rng(Player player, Crate crate) {
+        return randomProvider.forRoll(
+            player != null ? player.getUniqueId() : null,
+            crate != null ? crate.getId() : null);
+    }
+
+    public RandomProvider getRandomProvider() {
+        return randomProvider;
     }
 
     public void giveKey(Player player, String crateId, int amount) {
@@ -101,11 +238,26 @@ public class CrateManager {
             return;
         }
 
-        ItemStack key = crate.getKey().createItem(Math.max(1, amount));
+        VirtualKeyManager virtualKeys = plugin.getVirtualKeyManager();
+        if (virtualKeys != null && virtualKeys.isEnabled()) {
+            virtualKeys.credit(player.getUniqueId(), crate, Math.max(1, amount));
+            return;
+        }
+
+        int given = Math.max(1, amount);
+        ItemStack key = crate.getKey().createItem(given);
         Map<Integer, ItemStack> leftovers = player.getInventory().addItem(key);
         if (!leftovers.isEmpty()) {
-            leftovers.values().forEach(item -> player.getWorld().dropItemNaturally(player.getLocation(), item));
+            for (ItemStack item : leftovers.values()) {
+                given -= item.getAmount();
+                player.getWorld().dropItemNaturally(player.getLocation(), item);
+            }
             player.sendMessage(ColorUtil.colorize("&cYour inventory was full, dropped the remaining keys at your feet."));
         }
+
+        KeyCountManager keyCounts = plugin.getKeyCountManager();
+        if (keyCounts != null) {
+            keyCounts.adjust(player, crate, given);
+        }
     }
 }
@@ -0,0 +1,133 @@
+package com.lootcrates.crate;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Hands out the random sources used for crate and pity rolls.
+ * <p>
+ * {@link Mode#THREAD_LOCAL} (the default) returns {@link ThreadLocalRandom}, so concurrent
+ * openers never contend on a shared seed. {@link Mode#SEEDED} gives every player and crate
+ * pair its own deterministic stream derived from the configured seed and a random salt
+ * drawn when the player's session starts. The salt is logged then, so rolls are reproducible
+ * for audits from the seed and the logged salt, but a player who relogs does not get the
+ * same sequence again.
+ */
+public class RandomProvider {
+
+    public enum Mode {
+        THREAD_LOCAL, SEEDED
+    }
+
+    private static final SecureRandom SALTS = new SecureRandom();
+
+    private final Mode mode;
+    private final long seed;
+    private final Random sharedSeeded;
+    private final Logger logger;
+    private final Map<UUID, PlayerStreams> streams = new ConcurrentHashMap<>();
+
+    public RandomProvider(Mode mode, long seed, Logger logger) {
+        this.mode = mode;
+        this.seed = seed;
+        this.sharedSeeded = mode == Mode.SEEDED ? new Random(seed) : null;
+        this.logger = logger;
+    }
+
+    public static RandomProvider fromConfig(ConfigurationSection section, Logger logger) {
+        if (section == null) {
+            return new RandomProvider(Mode.THREAD_LOCAL, 0L, logger);
+        }
+
+        Mode mode;
+        try {
+            mode = Mode.valueOf(section.getString("mode", "THREAD_LOCAL").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            mode = Mode.THREAD_LOCAL;
+        }
+        return new RandomProvider(mode, section.getLong("seed", 0L), logger);
+    }
+
+    /**
+     * Random source that is not tied to a player, e.g. for API callers.
+     */
+    public Random shared() {
+        return mode == Mode.SEEDED ? sharedSeeded : ThreadLocalRandom.current();
+    }
+
+    /**
+     * Random source for a roll of the given crate by the given player.
+     */
+    public Random forRoll(UUID playerId, String crateId) {
+        if (mode != Mode.SEEDED) {
+            return ThreadLocalRandom.current();
+        }
+        if (playerId == null || crateId == null) {
+            return sharedSeeded;
+        }
+
+        PlayerStreams player = streams.computeIfAbsent(playerId, this::startSession);
+        return player.byCrate.computeIfAbsent(crateId, id -> new Random(streamSeed(playerId, player.salt, id)));
+    }
+
+    private PlayerStreams startSession(UUID playerId) {
+        long salt = SALTS.nextLong();
+        if (logger != null) {
+            // Together with the seed this is all that is needed to replay the session's rolls
+            logger.info("Seeded roll session for " + playerId + " started with salt " + salt);
+        }
+        return new PlayerStreams(salt);
+    }
+
+    /**
+     * Drops the deterministic streams kept for a player. Their next roll starts a new session
+     * with a new salt.
+     */
+    public void release(UUID playerId) {
+        if (playerId != null) {
+            streams.remove(playerId);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    private long streamSeed(UUID playerId, long salt, String crateId) {
+        long h = seed;
+        h = mix(h ^ playerId.getMostSignificantBits());
+        h = mix(h ^ playerId.getLeastSignificantBits());
+        h = mix(h ^ salt);
+        h = mix(h ^ crateId.hashCode());
+        return h;
+    }
+
+    // SplitMix64 finaliser
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class PlayerStreams {
+        private final long salt;
+        private final Map<String, Random> byCrate = new ConcurrentHashMap<>();
+
+        private PlayerStreams(long salt) {
+            this.salt = salt;
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class Reward {
         public final int weight;
         public final Type type;
         public final String tier;
+        public final RewardTier tierLevel;
         public double amount; // Generic amount for new types
         public ItemStack item;
         public List<ItemStack> items; // For bundles and multiple items
@@ -54,6 +55,7 @@ public class Reward {
         this.weight = weight; 
         this.type = type; 
         this.tier = tier;
+        this.tierLevel = RewardTier.parse(tier);
         this.items = new ArrayList<>();
     }
 
@@ -286,6 +288,7 @@ public class Reward {
     public int getWeight() { return weight; }
     public Type getType() { return type; }
     public String getTier() { return tier; }
+    public RewardTier getTierLevel() { return tierLevel; }
     public double getAmount() { return amount; }
     public ItemStack getItem() { return item; }
     public List<ItemStack> getItems() { return items; }
@@ -0,0 +1,51 @@
+package com.lootcrates.crate;
+
+import java.util.Locale;
+
+/**
+ * Rarity tier of a reward, parsed once from the free-form {@code tier} string in the config.
+ */
+public enum RewardTier {
+    COMMON, UNCOMMON, RARE, EPIC, LEGENDARY, MYTHIC;
+
+    /**
+     * Whether a reward of this tier counts as a rare find in player statistics.
+     */
+    public boolean isRare() {
+        return this == RARE || this == LEGENDARY || this == MYTHIC;
+    }
+
+    /**
+     * Parses a configured tier name. Unknown names such as {@code ultra_rare} fall back to the
+     * tier they mention, matching how tiers were classified before they were parsed.
+     */
+    public static RewardTier parse(String name) {
+        if (name == null || name.isBlank()) {
+            return COMMON;
+        }
+
+        String normalized = name.trim().toUpperCase(Locale.ROOT);
+        try {
+            return valueOf(normalized);
+        } catch (IllegalArgumentException ignored) {
+            // Fall through to the substring match
+        }
+
+        if (normalized.contains("MYTHIC")) {
+            return MYTHIC;
+        }
+        if (normalized.contains("LEGENDARY")) {
+            return LEGENDARY;
+        }
+        if (normalized.contains("RARE")) {
+            return RARE;
+        }
+        if (normalized.contains("EPIC")) {
+            return EPIC;
+        }
+        if (normalized.contains("UNCOMMON")) {
+            return UNCOMMON;
+        }
+        return COMMON;
+    }
+}
@@ -0,0 +1,90 @@
+package com.lootcrates.crate;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+/**
+ * Precomputed cumulative weight table over a list of rewards.
+ * <p>
+ * The table is built once when a crate's rewards are loaded. A draw is a single
+ * {@link Random#nextInt(int)} followed by a binary search and does not allocate.
+ * For a given random stream it selects exactly the reward the old linear weight
+ * scan selected.
+ */
+public final class WeightedSampler {
+
+    public static final WeightedSampler EMPTY = new WeightedSampler(new Reward[0], new int[0], 0);
+
+    private final Reward[] rewards;
+    private final int[] cumulative;
+    private final int totalWeight;
+
+    private WeightedSampler(Reward[] rewards, int[] cumulative, int totalWeight) {
+        this.rewards = rewards;
+        this.cumulative = cumulative;
+        this.totalWeight = totalWeight;
+    }
+
+    public static WeightedSampler of(List<Reward> rewards) {
+        return of(rewards, Reward::getWeight);
+    }
+
+    public static WeightedSampler of(List<Reward> rewards, ToIntFunction<Reward> weightFunction) {
+        if (rewards == null || rewards.isEmpty()) {
+            return EMPTY;
+        }
+
+        Reward[] table = rewards.toArray(new Reward[0]);
+        int[] cumulative = new int[table.length];
+        long running = 0;
+
+        for (int i = 0; i < table.length; i++) {
+            // Negative weights would make the table non-monotonic, treat them as "never"
+            running += Math.max(0, weightFunction.applyAsInt(table[i]));
+            if (running > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Total reward weight exceeds " + Integer.MAX_VALUE);
+            }
+            cumulative[i] = (int) running;
+        }
+
+        return new WeightedSampler(table, cumulative, (int) running);
+    }
+
+    public Reward sample(Random rng) {
+        if (rewards.length == 0) {
+            return null;
+        }
+        if (totalWeight <= 0) {
+            return rewards[0];
+        }
+
+        int pick = rng.nextInt(totalWeight);
+
+        // First entry whose cumulative weight is strictly greater than the pick
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > pick) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return rewards[low];
+    }
+
+    public int size() {
+        return rewards.length;
+    }
+
+    public boolean isEmpty() {
+        return rewards.length == 0;
+    }
+
+    public int getTotalWeight() {
+        return totalWeight;
+    }
+}
@@ -48,6 +48,18 @@ public class PlayerData {
     public void setDataUpdated(long dataUpdated) { this.dataUpdated = dataUpdated; }
     
     // Utility methods
+    public PlayerData copy() {
+        PlayerData copy = new PlayerData(uuid, username);
+        copy.totalOpens = totalOpens;
+        copy.moneyEarned = moneyEarned;
+        copy.itemsReceived = itemsReceived;
+        copy.rareFinds = rareFinds;
+        copy.lastOpen = lastOpen;
+        copy.dataCreated = dataCreated;
+        copy.dataUpdated = dataUpdated;
+        return copy;
+    }
+    
     public double getLuckRatio() {
         return totalOpens > 0 ? (double) rareFinds / totalOpens : 0.0;
     }
@@ -0,0 +1,356 @@
+package com.lootcrates.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small bounded JDBC connection pool.
+ * <p>
+ * Borrowed connections are handed out as proxies whose {@code close()} returns the
+ * physical connection to the pool. Idle connections are validated before reuse when they
+ * have been idle for a while, and {@link #housekeep()} closes connections that exceeded the
+ * idle timeout or maximum lifetime and reports connections that were borrowed for longer
+ * than the leak detection threshold.
+ */
+public class ConnectionPool {
+
+    private static final long VALIDATION_SKIP_MILLIS = 500L;
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final Settings settings;
+    private final Logger logger;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private volatile boolean closed;
+
+    public ConnectionPool(String name, ConnectionFactory factory, Settings settings, Logger logger) {
+        this.name = name;
+        this.factory = factory;
+        this.settings = settings;
+        this.logger = logger;
+        this.permits = new Semaphore(Math.max(1, settings.maxSize()), true);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured connection timeout for one to
+     * become available. Closing the returned connection returns it to the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+
+        waiting.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(settings.connectionTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + settings.connectionTimeoutMillis()
+                    + "ms waiting for a connection from pool " + name + " (" + getStats() + ")");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from pool " + name, ex);
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = open();
+            }
+            pooled.borrowedAt = System.currentTimeMillis();
+            // A stack walk per borrow, so only when leak detection is on
+            pooled.borrowSite = settings.leakThresholdMillis() > 0 ? new Throwable("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            borrowed.add(pooled);
+            borrows.incrementAndGet();
+            return pooled.proxy();
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes idle connections past their idle timeout or lifetime, reports leaked
+     * connections and tops the pool back up to its minimum idle size.
+     */
+    public void housekeep() {
+        if (closed) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : idle) {
+            boolean idleTooLong = settings.idleTimeoutMillis() > 0
+                && now - pooled.returnedAt > settings.idleTimeoutMillis()
+                && total.get() > settings.minIdle();
+            if ((idleTooLong || pooled.isExpired(now)) && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        }
+
+        if (settings.leakThresholdMillis() > 0) {
+            for (PooledConnection pooled : borrowed) {
+                if (!pooled.leakReported && now - pooled.borrowedAt > settings.leakThresholdMillis()) {
+                    pooled.leakReported = true;
+                    leaks.incrementAndGet();
+                    logger.log(Level.WARNING, "Possible connection leak in pool " + name + ": connection held for "
+                        + (now - pooled.borrowedAt) + "ms", pooled.borrowSite);
+                }
+            }
+        }
+
+        while (!closed && total.get() < settings.minIdle() && total.get() < settings.maxSize()) {
+            try {
+                PooledConnection pooled = open();
+                pooled.returnedAt = System.currentTimeMillis();
+                idle.offerLast(pooled);
+            } catch (SQLException ex) {
+                logger.log(Level.WARNING, "Failed to open idle connection for pool " + name, ex);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and refuses new borrows. Borrowed connections are closed
+     * when they are returned.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Stats getStats() {
+        int active = borrowed.size();
+        return new Stats(total.get(), active, idle.size(), waiting.get(), settings.maxSize(),
+            created.get(), destroyed.get(), borrows.get(), timeouts.get(), leaks.get());
+    }
+
+    private PooledConnection takeIdle() {
+        long now = System.currentTimeMillis();
+        PooledConnection pooled;
+        // Most recently returned first, so surplus connections age out via the idle timeout
+        while ((pooled = idle.pollLast()) != null) {
+            if (pooled.isExpired(now) || !isUsable(pooled, now)) {
+                destroy(pooled);
+                continue;
+            }
+            return pooled;
+        }
+        return null;
+    }
+
+    private boolean isUsable(PooledConnection pooled, long now) {
+        if (now - pooled.returnedAt < VALIDATION_SKIP_MILLIS) {
+            return true;
+        }
+        try {
+            return pooled.connection.isValid(settings.validationTimeoutSeconds());
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = factory.create();
+        if (connection == null) {
+            throw new SQLException("Connection factory for pool " + name + " returned null");
+        }
+        total.incrementAndGet();
+        created.incrementAndGet();
+        return new PooledConnection(connection, System.currentTimeMillis());
+    }
+
+    private void release(PooledConnection pooled) {
+        if (!borrowed.remove(pooled)) {
+            return;
+        }
+
+        try {
+            boolean reusable = !closed && !pooled.broken && !pooled.connection.isClosed()
+                && !pooled.isExpired(System.currentTimeMillis());
+            if (reusable && !pooled.connection.getAutoCommit()) {
+                // Never hand out a connection with a half-finished transaction
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+
+            if (reusable) {
+                pooled.returnedAt = System.currentTimeMillis();
+                idle.offerLast(pooled);
+            } else {
+                destroy(pooled);
+            }
+        } catch (SQLException ex) {
+            destroy(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void destroy(PooledConnection pooled) {
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException ignored) {
+            // Connection is being discarded anyway
+        }
+    }
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    public record Settings(
+        int maxSize,
+        int minIdle,
+        long connectionTimeoutMillis,
+        long idleTimeoutMillis,
+        long maxLifetimeMillis,
+        long leakThresholdMillis,
+        int validationTimeoutSeconds
+    ) {
+    }
+
+    public record Stats(
+        int total,
+        int active,
+        int idle,
+        int waiting,
+        int maxSize,
+        long created,
+        long destroyed,
+        long borrows,
+        long timeouts,
+        long leaks
+    ) {
+        @Override
+        public String toString() {
+            return "total=" + total + "/" + maxSize + ", active=" + active + ", idle=" + idle + ", waiting=" + waiting;
+        }
+    }
+
+    private final class PooledConnection {
+        private final Connection connection;
+        private final long createdAt;
+        private volatile long borrowedAt;
+        private volatile long returnedAt;
+        private volatile Throwable borrowSite;
+        private volatile boolean leakReported;
+        private volatile boolean broken;
+
+        private PooledConnection(Connection connection, long createdAt) {
+            this.connection = connection;
+            this.createdAt = createdAt;
+            this.returnedAt = createdAt;
+        }
+
+        private boolean isExpired(long now) {
+            return settings.maxLifetimeMillis() > 0 && now - createdAt > settings.maxLifetimeMillis();
+        }
+
+        private Connection proxy() {
+            // A fresh handle per borrow, so a stale reference can't return the connection twice
+            return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new Handle(this));
+        }
+
+        private Object delegate(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof SQLException sqlException && isFatal(sqlException)) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        private boolean isFatal(SQLException ex) {
+            // SQLState class 08 is a connection exception
+            String state = ex.getSQLState();
+            return state != null && state.startsWith("08");
+        }
+    }
+
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned;
+
+        private Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!returned) {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return returned || pooled.connection.isClosed();
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "Pooled[" + name + "]" + pooled.connection;
+                }
+                default -> {
+                    if (returned) {
+                        throw new SQLException("Connection has already been returned to pool " + name);
+                    }
+                    return pooled.delegate(method, args);
+                }
+            }
+        }
+    }
+}
@@ -1,17 +1,28 @@
 package com.lootcrates.database;
 
 import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.util.MetricsCollector;
 import org.bukkit.configuration.ConfigurationSection;
 
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 public class DatabaseManager {
@@ -34,6 +45,24 @@ public class DatabaseManager {
     private String mysqlPassword;
     private boolean mysqlUseSSL;
 
+    private ConnectionPool pool;
+    // Separate read-only connections for SQLite, same as pool for MySQL
+    private ConnectionPool readPool;
+
+    // Single-writer queue, drained in transactions on the writer thread in the order writes
+    // were queued, so a newer snapshot of a row can never be overwritten by an older one.
+    // Used for MySQL too: quit snapshots, key deltas and balance reads, and offline reward
+    // claims rely on that order, which parallel connections would not keep. Reads still use
+    // the whole pool.
+    private final ExecutorService writer;
+    private final Queue<QueuedWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private int writeBatchSize = 64;
+    private int sqliteCacheSizeKb = 8192;
+    private int sqliteBusyTimeout = 5000;
+    private String sqliteSynchronous = "NORMAL";
+
     public DatabaseManager(LootCratesPlugin plugin) {
         this.plugin = plugin;
         this.executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
@@ -46,6 +75,11 @@ public class DatabaseManager {
                 return thread;
             }
         });
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LootCrates-DB-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public boolean initialize() {
@@ -69,6 +103,18 @@ public class DatabaseManager {
 
                 sqlitePath = new File(dataFolder, "lootcrates.db").getAbsolutePath();
 
+                ConfigurationSection sqliteSection = databaseSection != null ? databaseSection.getConfigurationSection("sqlite") : null;
+                if (sqliteSection != null) {
+                    writeBatchSize = Math.max(1, sqliteSection.getInt("write_batch_size", writeBatchSize));
+                    sqliteCacheSizeKb = Math.max(0, sqliteSection.getInt("cache_size_kb", sqliteCacheSizeKb));
+                    sqliteBusyTimeout = Math.max(0, sqliteSection.getInt("busy_timeout", sqliteBusyTimeout));
+                    sqliteSynchronous = sqliteSection.getString("synchronous", sqliteSynchronous).toUpperCase(Locale.ROOT);
+                }
+                if (!List.of("OFF", "NORMAL", "FULL", "EXTRA").contains(sqliteSynchronous)) {
+                    plugin.getLogger().warning("Unknown SQLite synchronous mode '" + sqliteSynchronous + "', using NORMAL");
+                    sqliteSynchronous = "NORMAL";
+                }
+
                 try {
                     Class.forName("org.sqlite.JDBC");
                 } catch (ClassNotFoundException ignored) {
@@ -100,14 +146,25 @@ public class DatabaseManager {
                 }
             }
 
-            try (Connection connection = createConnection()) {
-                if (connection == null) {
-                    plugin.getLogger().severe("Failed to create database connection.");
-                    return false;
-                }
+            if (databaseType == DatabaseType.SQLITE) {
+                pool = new ConnectionPool("LootCrates-SQLITE-writer", () -> createConnection(false),
+                    poolSettings(databaseSection), plugin.getLogger());
+            } else {
+                pool = new ConnectionPool("LootCrates-MYSQL", () -> createConnection(false),
+                    poolSettings(databaseSection), plugin.getLogger());
+                readPool = pool;
+            }
+
+            try (Connection connection = pool.getConnection()) {
                 setupSchema(connection);
             }
 
+            if (databaseType == DatabaseType.SQLITE) {
+                // Opened after the schema exists and the writer switched the file to WAL
+                readPool = new ConnectionPool("LootCrates-SQLITE-reader", () -> createConnection(true),
+                    readPoolSettings(databaseSection), plugin.getLogger());
+            }
+
             return true;
         } catch (SQLException ex) {
             plugin.getLogger().log(Level.SEVERE, "Failed to initialise database", ex);
@@ -119,35 +176,154 @@ public class DatabaseManager {
         return databaseType;
     }
 
+    /**
+     * Borrows and validates a connection, so it blocks like {@link #getConnection()} and must
+     * not be called from the main thread.
+     */
     public boolean isConnected() {
-        try (Connection connection = createConnection()) {
-            return connection != null && !connection.isClosed();
+        if (pool == null || pool.isClosed()) {
+            return false;
+        }
+        try (Connection connection = pool.getConnection()) {
+            return connection.isValid(2);
         } catch (SQLException ex) {
             return false;
         }
     }
 
+    /**
+     * Borrows a pooled connection that may write. Closing it returns it to the pool.
+     * <p>
+     * With SQLite this is the single writer connection that the writer thread holds while it
+     * drains queued writes, so a caller waits behind them for up to the connection timeout.
+     * Never call this from the main thread, and never while already holding a connection from
+     * this pool, e.g. inside a queued write, which would wait for itself until it times out.
+     * Prefer {@link #executeAsync(SQLConsumer)}.
+     */
     public Connection getConnection() throws SQLException {
-        return createConnection();
+        if (pool == null) {
+            throw new SQLException("Database has not been initialised");
+        }
+        return pool.getConnection();
+    }
+
+    /**
+     * Borrows a pooled connection for reads. With SQLite it is read-only and does not
+     * wait for queued writes.
+     */
+    public Connection getReadConnection() throws SQLException {
+        if (readPool == null) {
+            return getConnection();
+        }
+        return readPool.getConnection();
+    }
+
+    public ConnectionPool.Stats getPoolStats() {
+        return pool != null ? pool.getStats() : null;
+    }
+
+    /**
+     * Stats of the SQLite reader connections, or null when reads share the main pool.
+     */
+    public ConnectionPool.Stats getReadPoolStats() {
+        return readPool != null && readPool != pool ? readPool.getStats() : null;
     }
 
+    public int getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    /**
+     * Evicts idle or expired connections and reports leaks, run periodically off the main thread.
+     */
+    public void housekeep() {
+        if (pool != null) {
+            pool.housekeep();
+        }
+        if (readPool != null && readPool != pool) {
+            readPool.housekeep();
+        }
+    }
+
+    /**
+     * Stops accepting new tasks, waits up to {@code settings.database.shutdown_timeout} seconds
+     * for queued writes to finish and then closes the pools. Final flushes on shutdown are
+     * queued like any other write before this is called, so they land after older snapshots.
+     */
     public void closeConnection() {
+        long timeoutMillis = plugin.getConfig().getLong("settings.database.shutdown_timeout", 10L) * 1000L;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        executor.shutdown();
+        writer.shutdown();
+        try {
+            boolean drained = executor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                & writer.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (!drained) {
+                plugin.getLogger().warning("Timed out waiting for database tasks to finish, "
+                    + pendingWrites.get() + " queued writes were dropped");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
         executor.shutdownNow();
+        writer.shutdownNow();
+
+        if (readPool != null && readPool != pool) {
+            readPool.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
     }
 
-    public void executeAsync(SQLConsumer consumer) {
-        executor.submit(() -> {
-            try (Connection connection = createConnection()) {
-                consumer.accept(connection);
-            } catch (SQLException ex) {
-                plugin.getLogger().log(Level.SEVERE, "Database execution error", ex);
-            }
-        });
+    /**
+     * Queues a write. The consumer always runs inside a transaction that is committed for it,
+     * behind its own savepoint, so it must not commit, roll back or change auto-commit itself.
+     * If it throws, only its own statements are rolled back; it runs exactly once either way.
+     * <p>
+     * Statements that ran are not yet persisted: the transaction can still fail to commit.
+     * In-memory state that depends on the write, such as dirty flags, must only be cleared
+     * once the returned future completes normally. It completes exceptionally if the consumer
+     * or the commit failed; failures are logged here already.
+     */
+    public CompletableFuture<Void> executeAsync(SQLConsumer consumer) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueueWrite(new QueuedWrite(connection -> {
+            consumer.accept(connection);
+            return null;
+        }, future, true));
+        return future;
+    }
+
+    /**
+     * Queues a write that produces a result, ordered with and run like
+     * {@link #executeAsync(SQLConsumer)} writes. The future completes once the transaction
+     * holding the write has been committed, or exceptionally if the write or the commit failed,
+     * so callers can act on rows the write claimed without risking that it is undone.
+     */
+    public <T> CompletableFuture<T> supplyWriteAsync(SQLFunction<T> function) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        enqueueWrite(new QueuedWrite(function, future, false));
+        return future;
+    }
+
+    private void enqueueWrite(QueuedWrite write) {
+        pendingWrites.incrementAndGet();
+        writeQueue.add(write);
+        scheduleDrain();
+    }
+
+    private void recordFlush(long start) {
+        MetricsCollector metrics = plugin.getMetrics();
+        if (metrics != null) {
+            metrics.recordSince(MetricsCollector.Stage.DB_FLUSH, start);
+        }
     }
 
     public <T> void queryAsync(SQLFunction<T> function) {
         executor.submit(() -> {
-            try (Connection connection = createConnection()) {
+            try (Connection connection = getReadConnection()) {
                 function.apply(connection);
             } catch (SQLException ex) {
                 plugin.getLogger().log(Level.SEVERE, "Database query error", ex);
@@ -155,9 +331,157 @@ public class DatabaseManager {
         });
     }
 
-    private Connection createConnection() throws SQLException {
+    /**
+     * Runs a read on the database executor and completes the future with its result.
+     */
+    public <T> CompletableFuture<T> supplyAsync(SQLFunction<T> function) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.submit(() -> {
+            try (Connection connection = getReadConnection()) {
+                future.complete(function.apply(connection));
+            } catch (SQLException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        return future;
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                writer.submit(this::drainWrites);
+            } catch (RejectedExecutionException ex) {
+                // Shutting down, write on the calling thread rather than losing it
+                drainWrites();
+            }
+        }
+    }
+
+    private void drainWrites() {
+        try {
+            List<QueuedWrite> batch = new ArrayList<>(writeBatchSize);
+            QueuedWrite task;
+            while (true) {
+                while (batch.size() < writeBatchSize && (task = writeQueue.poll()) != null) {
+                    batch.add(task);
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                long start = System.nanoTime();
+                writeBatch(batch);
+                recordFlush(start);
+                pendingWrites.addAndGet(-batch.size());
+                batch.clear();
+            }
+        } finally {
+            drainScheduled.set(false);
+            // A write may have been queued after the last poll but before the flag was cleared
+            if (!writeQueue.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Runs queued writes in one transaction, each behind its own savepoint. A write that fails
+     * is rolled back to its savepoint, so the others are kept and every write runs exactly once.
+     */
+    private void writeBatch(List<QueuedWrite> batch) {
+        SQLException commitFailure = null;
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                for (QueuedWrite task : batch) {
+                    runWrite(connection, task);
+                }
+                connection.commit();
+            } catch (SQLException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to commit " + batch.size() + " queued writes", ex);
+                commitFailure = ex;
+                connection.rollback();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Database execution error", ex);
+            commitFailure = ex;
+        }
+
+        // Completed after the connection is returned, callbacks may queue further writes
+        for (QueuedWrite task : batch) {
+            task.complete(commitFailure);
+        }
+    }
+
+    private void runWrite(Connection connection, QueuedWrite task) throws SQLException {
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            task.result = task.function.apply(connection);
+            connection.releaseSavepoint(savepoint);
+        } catch (SQLException | RuntimeException ex) {
+            if (task.logFailure) {
+                plugin.getLogger().log(Level.SEVERE, "Database execution error", ex);
+            }
+            task.failure = ex;
+            connection.rollback(savepoint);
+        }
+    }
+
+    private ConnectionPool.Settings poolSettings(ConfigurationSection databaseSection) {
+        ConfigurationSection section = databaseSection != null ? databaseSection.getConfigurationSection("pool") : null;
+        long connectionTimeout = section != null ? section.getLong("connection_timeout", 10L) : 10L;
+        // Off by default, when on every borrow captures a stack trace
+        long leakThreshold = section != null ? section.getLong("leak_detection_threshold", 0L) : 0L;
+
         if (databaseType == DatabaseType.SQLITE) {
-            return DriverManager.getConnection("jdbc:sqlite:" + sqlitePath);
+            // SQLite allows a single writer, so keep one long-lived connection instead of a pool
+            return new ConnectionPool.Settings(1, 1, connectionTimeout * 1000L, 0L, 0L, leakThreshold * 1000L, 5);
+        }
+
+        int maxSize = section != null ? section.getInt("max_size", 10) : 10;
+        int minIdle = section != null ? section.getInt("min_idle", 2) : 2;
+        long idleTimeout = section != null ? section.getLong("idle_timeout", 600L) : 600L;
+        long maxLifetime = section != null ? section.getLong("max_lifetime", 1800L) : 1800L;
+
+        return new ConnectionPool.Settings(
+            Math.max(1, maxSize),
+            Math.max(0, Math.min(minIdle, maxSize)),
+            connectionTimeout * 1000L,
+            idleTimeout * 1000L,
+            maxLifetime * 1000L,
+            leakThreshold * 1000L,
+            5);
+    }
+
+    private ConnectionPool.Settings readPoolSettings(ConfigurationSection databaseSection) {
+        ConfigurationSection section = databaseSection != null ? databaseSection.getConfigurationSection("sqlite") : null;
+        int readers = section != null ? section.getInt("read_connections", 2) : 2;
+        ConnectionPool.Settings writerSettings = poolSettings(databaseSection);
+        return new ConnectionPool.Settings(Math.max(1, readers), 0, writerSettings.connectionTimeoutMillis(),
+            0L, 0L, writerSettings.leakThresholdMillis(), 5);
+    }
+
+    private Connection createConnection(boolean readOnly) throws SQLException {
+        if (databaseType == DatabaseType.SQLITE) {
+            Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqlitePath);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA busy_timeout = " + sqliteBusyTimeout);
+                if (!readOnly) {
+                    // Persistent for the database file, readers pick it up automatically
+                    statement.execute("PRAGMA journal_mode = WAL");
+                }
+                statement.execute("PRAGMA synchronous = " + sqliteSynchronous);
+                statement.execute("PRAGMA cache_size = -" + sqliteCacheSizeKb);
+                statement.execute("PRAGMA temp_store = MEMORY");
+                if (readOnly) {
+                    statement.execute("PRAGMA query_only = ON");
+                }
+            } catch (SQLException ex) {
+                connection.close();
+                throw ex;
+            }
+            return connection;
         }
 
         String url = String.format(
@@ -186,6 +510,15 @@ public class DatabaseManager {
                 )
             """);
 
+            statement.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS lc_virtual_keys (
+                    player_uuid VARCHAR(36) NOT NULL,
+                    crate_id VARCHAR(64) NOT NULL,
+                    amount INT NOT NULL DEFAULT 0,
+                    PRIMARY KEY (player_uuid, crate_id)
+                )
+            """);
+
             statement.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS lc_cooldowns (
                     player_uuid VARCHAR(36) NOT NULL,
@@ -195,6 +528,17 @@ public class DatabaseManager {
                 )
             """);
 
+            createIndex(statement, "idx_lc_cooldowns_expires", "lc_cooldowns", "expires_at");
+
+            statement.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS lc_pity (
+                    player_uuid VARCHAR(36) NOT NULL,
+                    crate_id VARCHAR(64) NOT NULL,
+                    counter INT NOT NULL DEFAULT 0,
+                    PRIMARY KEY (player_uuid, crate_id)
+                )
+            """);
+
             String queuePrimaryKey = databaseType == DatabaseType.SQLITE
                 ? "INTEGER PRIMARY KEY AUTOINCREMENT"
                 : "INT NOT NULL AUTO_INCREMENT PRIMARY KEY";
@@ -207,6 +551,47 @@ public class DatabaseManager {
                 "payload TEXT," +
                 "created_at BIGINT NOT NULL" +
                 ")");
+            createIndex(statement, "idx_lc_offline_queue_player", "lc_offline_queue", "player_uuid");
+        }
+    }
+
+    private void createIndex(Statement statement, String name, String table, String columns) throws SQLException {
+        if (databaseType == DatabaseType.SQLITE) {
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")");
+            return;
+        }
+
+        // MySQL has no IF NOT EXISTS for indexes
+        try {
+            statement.executeUpdate("CREATE INDEX " + name + " ON " + table + " (" + columns + ")");
+        } catch (SQLException ex) {
+            if (ex.getErrorCode() != 1061) { // ER_DUP_KEYNAME
+                throw ex;
+            }
+        }
+    }
+
+    private static final class QueuedWrite {
+        private final SQLFunction<?> function;
+        private final CompletableFuture<?> future;
+        private final boolean logFailure;
+        private Object result;
+        private Throwable failure;
+
+        private QueuedWrite(SQLFunction<?> function, CompletableFuture<?> future, boolean logFailure) {
+            this.function = function;
+            this.future = future;
+            this.logFailure = logFailure;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(Throwable commitFailure) {
+            Throwable error = failure != null ? failure : commitFailure;
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                ((CompletableFuture<Object>) future).complete(result);
+            }
         }
     }
 
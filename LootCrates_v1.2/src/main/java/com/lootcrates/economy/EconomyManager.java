@@ -64,6 +64,10 @@ public class EconomyManager {
     }
 
     public boolean deposit(Player player, double amount) {
+        return deposit((OfflinePlayer) player, amount);
+    }
+
+    public boolean deposit(OfflinePlayer player, double amount) {
         if (!hasVaultEconomy()) {
             return false;
         }
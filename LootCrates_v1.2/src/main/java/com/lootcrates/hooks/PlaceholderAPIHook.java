@@ -8,7 +8,6 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.inventory.ItemStack;
 
 import java.lang.reflect.Method;
 import java.util.Locale;
@@ -138,14 +137,7 @@ public class PlaceholderAPIHook {
             return 0;
         }
 
-        ItemStack keyItem = crate.getKey().createItem(1);
-        int count = 0;
-        for (ItemStack item : player.getInventory().getContents()) {
-            if (item != null && item.isSimilar(keyItem)) {
-                count += item.getAmount();
-            }
-        }
-        return count;
+        return plugin.getCrateManager().getKeyCount(player, crate);
     }
 
     private int getCrateOpens(Player player, String crateId) {
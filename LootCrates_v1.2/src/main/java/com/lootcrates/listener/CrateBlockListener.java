@@ -22,7 +22,7 @@ public class CrateBlockListener implements Listener {
         if (a != Action.RIGHT_CLICK_BLOCK && a != Action.LEFT_CLICK_BLOCK) return;
         Block b = e.getClickedBlock();
         if (b == null) return;
-        String crateId = plugin.blocks().get(b.getLocation());
+        String crateId = plugin.blocks().get(b);
         if (crateId == null) return;
 
         Crate c = plugin.crates().get(crateId);
@@ -32,6 +32,8 @@ public class CrateBlockListener implements Listener {
         Player p = e.getPlayer();
         if (a == Action.RIGHT_CLICK_BLOCK){
             GUI.preview(p, c);
+        } else if (a == Action.LEFT_CLICK_BLOCK && p.isSneaking()){
+            GUI.openMany(plugin, p, c, plugin.getConfig().getInt("settings.bulk_open.shift_amount", 10));
         } else if (a == Action.LEFT_CLICK_BLOCK){
             GUI.tryOpenWithKey(plugin, p, c, false);
         }
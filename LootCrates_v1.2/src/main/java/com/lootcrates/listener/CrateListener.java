@@ -7,11 +7,17 @@ import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 
 import com.lootcrates.command.GUI;
+import com.lootcrates.command.PreviewHolder;
 
 public class CrateListener implements Listener {
 
     @EventHandler
     public void onClick(InventoryClickEvent e){
+        if (e.getView().getTopInventory().getHolder() instanceof PreviewHolder holder){
+            e.setCancelled(true);
+            GUI.handlePreviewClick((Player) e.getWhoClicked(), holder, e.getRawSlot());
+            return;
+        }
         String t = e.getView().getTitle();
         if (t.startsWith("§8Preview:") || t.startsWith("§8Opening:")){
             e.setCancelled(true);
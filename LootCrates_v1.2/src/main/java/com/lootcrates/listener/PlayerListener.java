@@ -1,11 +1,13 @@
 package com.lootcrates.listener;
 
 import com.lootcrates.LootCratesPlugin;
-import com.lootcrates.util.MessageManager;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 public class PlayerListener implements Listener {
@@ -16,33 +18,54 @@ public class PlayerListener implements Listener {
         this.plugin = plugin;
     }
     
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        
+        // Runs off the main thread, so the database can be queried directly
+        plugin.getPlayerDataManager().preloadPlayerData(event.getUniqueId(), event.getName());
+        plugin.getCooldownManager().preloadPlayer(event.getUniqueId());
+        plugin.getPityManager().preloadPlayer(event.getUniqueId());
+        plugin.getVirtualKeyManager().loadPlayer(event.getUniqueId());
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            // Drop data prefetched for a login that was refused after pre-login
+            unload(event.getPlayer());
+        }
+    }
+    
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         
-        // Load player data
-        plugin.getPlayerDataManager().getPlayerData(player);
+        // Normally cached at pre-login, otherwise loaded in the background
+        plugin.getPlayerDataManager().getPlayerDataAsync(player.getUniqueId(), player.getName());
+        plugin.getCooldownManager().loadPlayer(player.getUniqueId());
+        plugin.getPityManager().loadPlayer(player.getUniqueId());
+        plugin.getVirtualKeyManager().loadPlayer(player.getUniqueId());
         
-        // Check for offline rewards
-        if (plugin.getConfig().getBoolean("settings.offline_queue.enabled", true)) {
-            // Check offline queue and notify player
-            // This would be implemented in QueueManager
-            
-            // Placeholder notification
-            int offlineRewards = 0; // Get from QueueManager
-            if (offlineRewards > 0) {
-                plugin.getMessageManager().sendMessageWithPrefix(player, "queue.offline_rewards",
-                    MessageManager.Placeholder.of("count", offlineRewards),
-                    MessageManager.Placeholder.of("s", offlineRewards > 1 ? "s" : ""));
-            }
-        }
+        // Hand out rewards granted while the player was offline
+        plugin.getQueueManager().deliverOnJoin(player);
     }
     
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
-        Player player = event.getPlayer();
+        unload(event.getPlayer());
+    }
+    
+    private void unload(Player player) {
+        plugin.getRewardDeliveryManager().flush(player);
         
         // Save and unload player data
         plugin.getPlayerDataManager().unloadPlayerData(player.getUniqueId());
+        plugin.getCooldownManager().unloadPlayer(player.getUniqueId());
+        plugin.getPityManager().unloadPlayer(player.getUniqueId());
+        plugin.getVirtualKeyManager().unloadPlayer(player.getUniqueId());
+        plugin.getCrateManager().getRandomProvider().release(player.getUniqueId());
     }
 }
\ No newline at end of file
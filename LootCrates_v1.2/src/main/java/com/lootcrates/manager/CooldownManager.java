@@ -1,67 +1,255 @@
 package com.lootcrates.manager;
 
 import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.crate.Crate;
+import com.lootcrates.crate.CrateManager;
 import org.bukkit.entity.Player;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 public class CooldownManager {
     
     private final LootCratesPlugin plugin;
-    private final Map<String, Long> cooldownCache = new ConcurrentHashMap<>();
+    
+    // Expiry times per player, indexed by interned crate index; 0 means no cooldown
+    private final Map<UUID, long[]> cooldowns = new ConcurrentHashMap<>();
+    
+    // Removed by an admin but still stored; deleted by the next write-back, then reset to 0
+    private static final long REMOVED = -1L;
+    
+    // Players whose stored cooldowns were read, including players without any
+    private final Set<UUID> loadedPlayers = ConcurrentHashMap.newKeySet();
+    
+    // Min-heap of scheduled expiries; entries whose cooldown has since changed are skipped
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong(Expiry::expiresAt));
+    
+    // Write-back: players with cooldowns not yet written, and snapshots of players
+    // who quit whose write is still in flight
+    private final Set<UUID> dirtyPlayers = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, long[]> unloading = new ConcurrentHashMap<>();
     
     public CooldownManager(LootCratesPlugin plugin) {
         this.plugin = plugin;
-        loadCooldowns();
     }
     
-    private void loadCooldowns() {
+    /**
+     * Loads a player's active cooldowns on the calling thread, used from the async pre-login event.
+     */
+    public void preloadPlayer(UUID playerUuid) {
+        try (Connection connection = plugin.getDatabaseManager().getReadConnection()) {
+            readCooldowns(connection, playerUuid);
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to load cooldowns for " + playerUuid, e);
+        }
+    }
+    
+    /**
+     * Loads a player's active cooldowns in the background if they are not in memory yet.
+     */
+    public void loadPlayer(UUID playerUuid) {
+        if (loadedPlayers.contains(playerUuid) || cooldowns.containsKey(playerUuid)) {
+            return;
+        }
         plugin.getDatabaseManager().queryAsync(connection -> {
-            String sql = "SELECT player_uuid, crate_id, expires_at FROM lc_cooldowns WHERE expires_at > ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setLong(1, System.currentTimeMillis());
-                
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        String key = rs.getString("player_uuid") + ":" + rs.getString("crate_id");
-                        cooldownCache.put(key, rs.getLong("expires_at"));
-                    }
-                }
-            }
+            readCooldowns(connection, playerUuid);
             return null;
         });
     }
     
-    public boolean hasCooldown(Player player, String crateId) {
-        if (player.hasPermission("lootcrates.bypass.cooldown")) {
-            return false;
+    /**
+     * Writes back the player's cooldowns and drops them from memory.
+     */
+    public void unloadPlayer(UUID playerUuid) {
+        loadedPlayers.remove(playerUuid);
+        long[] expiry = cooldowns.remove(playerUuid);
+        if (expiry == null || !dirtyPlayers.remove(playerUuid)) {
+            return;
         }
         
-        String key = player.getUniqueId() + ":" + crateId;
-        Long expiry = cooldownCache.get(key);
+        long[] snapshot;
+        synchronized (expiry) {
+            snapshot = expiry.clone();
+        }
+        // Kept until written so a quick rejoin does not read a stale row
+        unloading.put(playerUuid, snapshot);
+        List<Snapshot> snapshots = List.of(new Snapshot(playerUuid, snapshot));
+        plugin.getDatabaseManager().executeAsync(connection -> writeCooldowns(connection, snapshots))
+            .whenComplete((ignored, error) -> {
+                settle(snapshots, error != null);
+                unloading.remove(playerUuid, snapshot);
+            });
+    }
+    
+    /**
+     * Writes cooldowns set since the last flush on the database executor.
+     */
+    public void flushAll() {
+        List<Snapshot> snapshots = drainDirty();
+        if (!snapshots.isEmpty()) {
+            plugin.getDatabaseManager().executeAsync(connection -> writeCooldowns(connection, snapshots))
+                .whenComplete((ignored, error) -> settle(snapshots, error != null));
+        }
+    }
+    
+    private void readCooldowns(Connection connection, UUID playerUuid) throws SQLException {
+        long now = System.currentTimeMillis();
+        String sql = "SELECT crate_id, expires_at FROM lc_cooldowns WHERE player_uuid = ? AND expires_at > ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, playerUuid.toString());
+            stmt.setLong(2, now);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                CrateManager crateManager = plugin.getCrateManager();
+                long[] pending = unloading.get(playerUuid);
+                while (rs.next()) {
+                    int index = crateManager.indexOf(rs.getString("crate_id"));
+                    // Skip rows that a write still in flight is about to delete
+                    boolean removed = pending != null && index >= 0 && index < pending.length && pending[index] == REMOVED;
+                    if (index >= 0 && !removed) {
+                        putIfLater(playerUuid, index, rs.getLong("expires_at"));
+                    }
+                }
+            }
+        }
+        loadedPlayers.add(playerUuid);
         
-        if (expiry == null) {
-            return false;
+        long[] pending = unloading.get(playerUuid);
+        if (pending != null) {
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i] > now) {
+                    putIfLater(playerUuid, i, pending[i]);
+                }
+            }
         }
+    }
+    
+    private List<Snapshot> drainDirty() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (UUID playerUuid : dirtyPlayers) {
+            if (!dirtyPlayers.remove(playerUuid)) {
+                continue;
+            }
+            long[] expiry = cooldowns.get(playerUuid);
+            if (expiry != null) {
+                synchronized (expiry) {
+                    snapshots.add(new Snapshot(playerUuid, expiry.clone()));
+                }
+            }
+        }
+        return snapshots;
+    }
+    
+    private void writeCooldowns(Connection connection, List<Snapshot> snapshots) throws SQLException {
+        String sql = """
+            INSERT INTO lc_cooldowns (player_uuid, crate_id, expires_at)
+            VALUES (?, ?, ?)
+            ON DUPLICATE KEY UPDATE expires_at = VALUES(expires_at)
+        """;
         
-        if (expiry <= System.currentTimeMillis()) {
-            cooldownCache.remove(key);
-            removeCooldownFromDatabase(player.getUniqueId(), crateId);
+        if (plugin.getDatabaseManager().getDatabaseType() == 
+            com.lootcrates.database.DatabaseManager.DatabaseType.SQLITE) {
+            sql = """
+                INSERT OR REPLACE INTO lc_cooldowns (player_uuid, crate_id, expires_at)
+                VALUES (?, ?, ?)
+            """;
+        }
+        
+        CrateManager crateManager = plugin.getCrateManager();
+        long now = System.currentTimeMillis();
+        try (PreparedStatement stmt = connection.prepareStatement(sql);
+             PreparedStatement delete = connection.prepareStatement(
+                 "DELETE FROM lc_cooldowns WHERE player_uuid = ? AND crate_id = ?")) {
+            for (Snapshot snapshot : snapshots) {
+                for (int i = 0; i < snapshot.expiry().length; i++) {
+                    String crateId = crateManager.idAt(i);
+                    if (crateId == null) {
+                        continue;
+                    }
+                    if (snapshot.expiry()[i] > now) {
+                        stmt.setString(1, snapshot.playerUuid().toString());
+                        stmt.setString(2, crateId);
+                        stmt.setLong(3, snapshot.expiry()[i]);
+                        stmt.addBatch();
+                    } else if (snapshot.expiry()[i] == REMOVED) {
+                        delete.setString(1, snapshot.playerUuid().toString());
+                        delete.setString(2, crateId);
+                        delete.addBatch();
+                    }
+                }
+            }
+            stmt.executeBatch();
+            delete.executeBatch();
+        }
+    }
+    
+    /**
+     * Called once the write of the snapshots has committed or failed. Players whose write
+     * failed and who are in memory are written again by the next flush.
+     */
+    private void settle(List<Snapshot> snapshots, boolean failed) {
+        for (Snapshot snapshot : snapshots) {
+            if (!failed) {
+                clearRemoved(snapshot);
+            } else if (cooldowns.containsKey(snapshot.playerUuid())) {
+                dirtyPlayers.add(snapshot.playerUuid());
+            }
+        }
+    }
+    
+    /**
+     * Resets removals that have now been deleted from the database, unless the cooldown
+     * changed again in the meantime.
+     */
+    private void clearRemoved(Snapshot snapshot) {
+        cooldowns.computeIfPresent(snapshot.playerUuid(), (uuid, expiry) -> {
+            synchronized (expiry) {
+                for (int i = 0; i < snapshot.expiry().length && i < expiry.length; i++) {
+                    if (snapshot.expiry()[i] == REMOVED && expiry[i] == REMOVED) {
+                        expiry[i] = 0L;
+                    }
+                }
+            }
+            return expiry;
+        });
+    }
+    
+    public boolean hasCooldown(Player player, Crate crate) {
+        return crate != null && hasCooldown(player, crate.getIndex());
+    }
+    
+    public boolean hasCooldown(Player player, String crateId) {
+        return hasCooldown(player, plugin.getCrateManager().indexOf(crateId));
+    }
+    
+    private boolean hasCooldown(Player player, int index) {
+        if (player.hasPermission("lootcrates.bypass.cooldown")) {
             return false;
         }
         
-        return true;
+        // Expired entries are left for cleanupExpiredCooldowns to remove
+        return getExpiry(player.getUniqueId(), index) > System.currentTimeMillis();
     }
     
     public long getCooldownExpiry(Player player, String crateId) {
-        String key = player.getUniqueId() + ":" + crateId;
-        return cooldownCache.getOrDefault(key, 0L);
+        return getExpiry(player.getUniqueId(), plugin.getCrateManager().indexOf(crateId));
+    }
+    
+    public long getRemainingCooldown(Player player, Crate crate) {
+        long expiry = crate != null ? getExpiry(player.getUniqueId(), crate.getIndex()) : 0L;
+        return Math.max(0, expiry - System.currentTimeMillis());
     }
     
     public long getRemainingCooldown(Player player, String crateId) {
@@ -69,54 +257,87 @@ public class CooldownManager {
         return Math.max(0, expiry - System.currentTimeMillis());
     }
     
+    public void setCooldown(Player player, Crate crate, long durationSeconds) {
+        if (crate != null) {
+            setCooldown(player.getUniqueId(), crate.getIndex(), crate.getId(), durationSeconds);
+        }
+    }
+    
     public void setCooldown(Player player, String crateId, long durationSeconds) {
-        long expiryTime = System.currentTimeMillis() + (durationSeconds * 1000);
-        String key = player.getUniqueId() + ":" + crateId;
-        
-        cooldownCache.put(key, expiryTime);
-        saveCooldownToDatabase(player.getUniqueId(), crateId, expiryTime);
+        CrateManager crateManager = plugin.getCrateManager();
+        int index = crateManager.indexOf(crateId);
+        setCooldown(player.getUniqueId(), index, crateManager.idAt(index), durationSeconds);
     }
     
-    public void removeCooldown(Player player, String crateId) {
-        String key = player.getUniqueId() + ":" + crateId;
-        cooldownCache.remove(key);
-        removeCooldownFromDatabase(player.getUniqueId(), crateId);
+    private void setCooldown(UUID playerUuid, int index, String crateId, long durationSeconds) {
+        if (index < 0 || crateId == null) {
+            return;
+        }
+        
+        long expiryTime = System.currentTimeMillis() + (durationSeconds * 1000);
+        put(playerUuid, index, expiryTime, false);
+        dirtyPlayers.add(playerUuid);
     }
     
-    private void saveCooldownToDatabase(UUID playerUuid, String crateId, long expiryTime) {
-        plugin.getDatabaseManager().executeAsync(connection -> {
-            String sql = """
-                INSERT INTO lc_cooldowns (player_uuid, crate_id, expires_at)
-                VALUES (?, ?, ?)
-                ON DUPLICATE KEY UPDATE expires_at = VALUES(expires_at)
-            """;
-            
-            if (plugin.getDatabaseManager().getDatabaseType() == 
-                com.lootcrates.database.DatabaseManager.DatabaseType.SQLITE) {
-                sql = """
-                    INSERT OR REPLACE INTO lc_cooldowns (player_uuid, crate_id, expires_at)
-                    VALUES (?, ?, ?)
-                """;
-            }
-            
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, playerUuid.toString());
-                stmt.setString(2, crateId);
-                stmt.setLong(3, expiryTime);
-                stmt.executeUpdate();
+    /**
+     * Removes a cooldown in memory. The stored row is deleted by the next write-back, in order
+     * with the player's other cooldown writes.
+     */
+    public void removeCooldown(Player player, String crateId) {
+        int index = plugin.getCrateManager().indexOf(crateId);
+        if (index < 0) {
+            return;
+        }
+        
+        boolean[] removed = new boolean[1];
+        cooldowns.computeIfPresent(player.getUniqueId(), (uuid, expiry) -> {
+            synchronized (expiry) {
+                if (index < expiry.length && expiry[index] != 0L) {
+                    expiry[index] = REMOVED;
+                    removed[0] = true;
+                }
             }
+            return expiry;
         });
+        if (removed[0]) {
+            dirtyPlayers.add(player.getUniqueId());
+        }
     }
     
-    private void removeCooldownFromDatabase(UUID playerUuid, String crateId) {
-        plugin.getDatabaseManager().executeAsync(connection -> {
-            String sql = "DELETE FROM lc_cooldowns WHERE player_uuid = ? AND crate_id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, playerUuid.toString());
-                stmt.setString(2, crateId);
-                stmt.executeUpdate();
+    private long getExpiry(UUID playerUuid, int index) {
+        if (index < 0) {
+            return 0L;
+        }
+        long[] expiry = cooldowns.get(playerUuid);
+        if (expiry == null) {
+            return 0L;
+        }
+        synchronized (expiry) {
+            return index < expiry.length ? Math.max(0L, expiry[index]) : 0L;
+        }
+    }
+    
+    private void putIfLater(UUID playerUuid, int index, long expiryTime) {
+        put(playerUuid, index, expiryTime, true);
+    }
+    
+    private void put(UUID playerUuid, int index, long expiryTime, boolean onlyIfLater) {
+        int size = Math.max(index + 1, plugin.getCrateManager().indexCount());
+        cooldowns.compute(playerUuid, (uuid, current) -> {
+            // Crates interned after this player's array was created need a larger array
+            long[] expiry = current == null ? new long[size]
+                : current.length > index ? current : Arrays.copyOf(current, size);
+            synchronized (expiry) {
+                if (!onlyIfLater || expiryTime > expiry[index]) {
+                    expiry[index] = expiryTime;
+                }
             }
+            return expiry;
         });
+        
+        synchronized (expiries) {
+            expiries.add(new Expiry(expiryTime, playerUuid, index));
+        }
     }
     
     public String formatTime(long milliseconds) {
@@ -142,11 +363,29 @@ public class CooldownManager {
         }
     }
     
+    /**
+     * Number of players whose cooldowns are held in memory.
+     */
+    public int getCachedPlayerCount() {
+        return cooldowns.size();
+    }
+    
+    /**
+     * Pops expired entries off the expiry heap, so the cost is proportional to the number of
+     * cooldowns that actually expired, writes back pending cooldowns and deletes expired rows
+     * of all players, online or not, with one indexed range delete.
+     */
     public void cleanupExpiredCooldowns() {
         long currentTime = System.currentTimeMillis();
-        cooldownCache.entrySet().removeIf(entry -> entry.getValue() <= currentTime);
         
-        // Also cleanup database
+        synchronized (expiries) {
+            while (!expiries.isEmpty() && expiries.peek().expiresAt() <= currentTime) {
+                clear(expiries.poll());
+            }
+        }
+        
+        flushAll();
+        
         plugin.getDatabaseManager().executeAsync(connection -> {
             String sql = "DELETE FROM lc_cooldowns WHERE expires_at <= ?";
             try (PreparedStatement stmt = connection.prepareStatement(sql)) {
@@ -155,4 +394,31 @@ public class CooldownManager {
             }
         });
     }
-}
\ No newline at end of file
+    
+    /**
+     * Clears the in-memory cooldown for a heap entry if it is still the current one.
+     */
+    private void clear(Expiry entry) {
+        cooldowns.computeIfPresent(entry.playerUuid(), (uuid, expiry) -> {
+            synchronized (expiry) {
+                if (entry.index() >= expiry.length || expiry[entry.index()] != entry.expiresAt()) {
+                    return expiry;
+                }
+                expiry[entry.index()] = 0L;
+                for (long value : expiry) {
+                    if (value != 0L) {
+                        return expiry;
+                    }
+                }
+            }
+            // Nothing left for this player
+            return dirtyPlayers.contains(uuid) ? expiry : null;
+        });
+    }
+    
+    private record Expiry(long expiresAt, UUID playerUuid, int index) {
+    }
+    
+    private record Snapshot(UUID playerUuid, long[] expiry) {
+    }
+}
@@ -0,0 +1,146 @@
+package com.lootcrates.manager;
+
+import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.crate.Crate;
+import com.lootcrates.crate.CrateManager;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-player index of how many keys of each crate a player carries.
+ * <p>
+ * Counts are adjusted in place when keys are granted or consumed by the plugin. Inventory
+ * events only mark the index stale; the inventory is scanned again on the next lookup, or
+ * once the configured maximum age has passed to catch changes made by other plugins.
+ * Cached counts can therefore lag behind the inventory; use {@link #countKeys} where the
+ * exact count matters.
+ */
+public class KeyCountManager {
+
+    private final LootCratesPlugin plugin;
+    private final Map<UUID, KeyCounts> counts = new ConcurrentHashMap<>();
+    private final long maxAgeMillis;
+
+    public KeyCountManager(LootCratesPlugin plugin) {
+        this.plugin = plugin;
+        this.maxAgeMillis = plugin.getConfig().getLong("settings.key_cache.max_age_seconds", 30L) * 1000L;
+    }
+
+    public int getKeyCount(Player player, Crate crate) {
+        if (player == null || crate == null || crate.getIndex() < 0) {
+            return 0;
+        }
+
+        KeyCounts entry = counts.computeIfAbsent(player.getUniqueId(), uuid -> new KeyCounts());
+        synchronized (entry) {
+            if (!entry.valid || System.currentTimeMillis() - entry.scannedAt > maxAgeMillis) {
+                rescan(player, entry);
+            }
+            int index = crate.getIndex();
+            return index < entry.amounts.length ? entry.amounts[index] : 0;
+        }
+    }
+
+    /**
+     * Counts the player's keys for a crate by scanning their inventory, bypassing the index.
+     */
+    public int countKeys(Player player, Crate crate) {
+        if (player == null || crate == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (ItemStack item : player.getInventory().getContents()) {
+            if (crate.getKey().matches(item)) {
+                count += item.getAmount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Applies a known change in key count, e.g. after granting or consuming keys.
+     */
+    public void adjust(Player player, Crate crate, int delta) {
+        if (player == null || crate == null || crate.getIndex() < 0) {
+            return;
+        }
+
+        KeyCounts entry = counts.get(player.getUniqueId());
+        if (entry == null) {
+            return;
+        }
+
+        synchronized (entry) {
+            int index = crate.getIndex();
+            if (!entry.valid || index >= entry.amounts.length) {
+                return;
+            }
+            entry.amounts[index] = Math.max(0, entry.amounts[index] + delta);
+        }
+    }
+
+    public void invalidate(Player player) {
+        if (player == null) {
+            return;
+        }
+        KeyCounts entry = counts.get(player.getUniqueId());
+        if (entry != null) {
+            // Taken under the lock so a rescan in progress cannot mark the entry valid afterwards
+            synchronized (entry) {
+                entry.valid = false;
+            }
+        }
+    }
+
+    /**
+     * Invalidates the player's counts on the next tick. Inventory events fire before the
+     * inventory changes, so a rescan between the event and the change would otherwise be
+     * cached as current.
+     */
+    public void invalidateNextTick(Player player) {
+        if (player != null && counts.containsKey(player.getUniqueId())) {
+            plugin.getServer().getScheduler().runTask(plugin, () -> invalidate(player));
+        }
+    }
+
+    public void invalidateAll() {
+        for (KeyCounts entry : counts.values()) {
+            synchronized (entry) {
+                entry.valid = false;
+            }
+        }
+    }
+
+    public void remove(UUID playerId) {
+        if (playerId != null) {
+            counts.remove(playerId);
+        }
+    }
+
+    private void rescan(Player player, KeyCounts entry) {
+        CrateManager crateManager = plugin.getCrateManager();
+        int[] amounts = new int[crateManager.indexCount()];
+
+        for (ItemStack item : player.getInventory().getContents()) {
+            Crate crate = crateManager.findKeyCrate(item);
+            if (crate != null && crate.getIndex() >= 0 && crate.getIndex() < amounts.length) {
+                amounts[crate.getIndex()] += item.getAmount();
+            }
+        }
+
+        entry.amounts = amounts;
+        entry.scannedAt = System.currentTimeMillis();
+        entry.valid = true;
+    }
+
+    private static final class KeyCounts {
+        private int[] amounts = new int[0];
+        private long scannedAt;
+        private boolean valid;
+    }
+}
@@ -2,67 +2,164 @@ package com.lootcrates.manager;
 
 import com.lootcrates.LootCratesPlugin;
 import com.lootcrates.crate.Crate;
+import com.lootcrates.crate.CrateManager;
 import com.lootcrates.crate.Reward;
+import com.lootcrates.database.DatabaseManager;
 import org.bukkit.entity.Player;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.EnumSet;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 public class PityProtectionManager {
 
-    private static final EnumSet<Reward.Type> GUARANTEED_REWARD_TYPES = EnumSet.of(
-        Reward.Type.SPECIAL_ITEM,
-        Reward.Type.SPECIALITEM,
-        Reward.Type.SPECIALITEM_CHOICE,
-        Reward.Type.SPECIALITEM_SET
-    );
-
     private final LootCratesPlugin plugin;
-    private final Map<UUID, Map<String, Integer>> pityCounters = new ConcurrentHashMap<>();
+
+    // Counters per player, indexed by interned crate index
+    private final Map<UUID, Counters> pityCounters = new ConcurrentHashMap<>();
+
+    // Write-behind: players with unsaved counters, snapshots of players who quit whose write
+    // is still in flight, and snapshots whose write failed after the player quit
+    private final Set<UUID> dirtyPlayers = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, Snapshot> unloading = new ConcurrentHashMap<>();
+    private final Map<UUID, Snapshot> unsaved = new ConcurrentHashMap<>();
 
     public PityProtectionManager(LootCratesPlugin plugin) {
         this.plugin = plugin;
     }
 
-    public void loadPityCounters() {
-        pityCounters.clear();
+    /**
+     * Loads a player's counters on the calling thread, used from the async pre-login event.
+     */
+    public void preloadPlayer(UUID playerId) {
+        try (Connection connection = plugin.getDatabaseManager().getReadConnection()) {
+            readCounters(connection, playerId);
+        } catch (SQLException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to load pity counters for " + playerId, ex);
+        }
+    }
+
+    /**
+     * Loads a player's counters in the background if they are not in memory yet.
+     */
+    public void loadPlayer(UUID playerId) {
+        if (pityCounters.containsKey(playerId)) {
+            return;
+        }
+        plugin.getDatabaseManager().queryAsync(connection -> {
+            readCounters(connection, playerId);
+            return null;
+        });
+    }
+
+    /**
+     * Writes back the player's counters and drops them from memory.
+     */
+    public void unloadPlayer(UUID playerId) {
+        Counters counters = pityCounters.remove(playerId);
+        if (counters == null || !dirtyPlayers.remove(playerId)) {
+            return;
+        }
+
+        Snapshot snapshot = counters.snapshot(playerId);
+        if (snapshot == null) {
+            return;
+        }
+        writeUnloaded(snapshot);
+    }
+
+    /**
+     * Writes counters changed since the last flush, and retries failed writes of players who
+     * quit, on the database executor.
+     */
+    public void flushAll() {
+        for (Snapshot snapshot : unsaved.values()) {
+            if (unsaved.remove(snapshot.playerId(), snapshot) && !pityCounters.containsKey(snapshot.playerId())) {
+                writeUnloaded(snapshot);
+            }
+        }
+
+        List<Snapshot> snapshots = drainDirty();
+        if (!snapshots.isEmpty()) {
+            plugin.getDatabaseManager().executeAsync(connection -> writeCounters(connection, snapshots))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        restore(snapshots);
+                    }
+                });
+        }
+    }
+
+    private void writeUnloaded(Snapshot snapshot) {
+        UUID playerId = snapshot.playerId();
+        // Kept until written so a quick rejoin does not read a stale row
+        unloading.put(playerId, snapshot);
+        plugin.getDatabaseManager().executeAsync(connection -> writeCounters(connection, List.of(snapshot)))
+            .whenComplete((ignored, error) -> {
+                if (error != null && !restore(List.of(snapshot)).isEmpty()) {
+                    // Not loaded again, retried by the next flush
+                    unsaved.put(playerId, snapshot);
+                }
+                unloading.remove(playerId, snapshot);
+            });
     }
 
     public int getPityCount(Player player, String crateId) {
         if (player == null || crateId == null) {
             return 0;
         }
-        Map<String, Integer> perPlayer = pityCounters.get(player.getUniqueId());
-        if (perPlayer == null) {
+        return getPityCount(player.getUniqueId(), plugin.getCrateManager().indexOf(crateId));
+    }
+
+    public int getPityCount(Player player, Crate crate) {
+        if (player == null || crate == null) {
             return 0;
         }
-        return perPlayer.getOrDefault(crateId.toUpperCase(Locale.ROOT), 0);
+        return getPityCount(player.getUniqueId(), crate.getIndex());
     }
 
-    public void incrementPity(Player player, String crateId) {
-        if (player == null || crateId == null) {
-            return;
+    private int getPityCount(UUID playerId, int index) {
+        Counters counters = index >= 0 ? pityCounters.get(playerId) : null;
+        if (counters == null) {
+            return 0;
+        }
+        synchronized (counters) {
+            return index < counters.values.length ? counters.values[index] : 0;
         }
+    }
 
-        pityCounters
-            .computeIfAbsent(player.getUniqueId(), uuid -> new ConcurrentHashMap<>())
-            .merge(crateId.toUpperCase(Locale.ROOT), 1, Integer::sum);
+    public void incrementPity(Player player, Crate crate) {
+        if (player != null && crate != null) {
+            update(player.getUniqueId(), crate.getIndex(), 1, false);
+        }
     }
 
-    public void resetPity(Player player, String crateId) {
-        if (player == null || crateId == null) {
-            return;
+    public void incrementPity(Player player, String crateId) {
+        if (player != null && crateId != null) {
+            update(player.getUniqueId(), plugin.getCrateManager().indexOf(crateId), 1, false);
         }
+    }
 
-        Map<String, Integer> perPlayer = pityCounters.get(player.getUniqueId());
-        if (perPlayer != null) {
-            perPlayer.remove(crateId.toUpperCase(Locale.ROOT));
+    public void resetPity(Player player, Crate crate) {
+        if (player != null && crate != null) {
+            update(player.getUniqueId(), crate.getIndex(), 0, true);
+        }
+    }
+
+    public void resetPity(Player player, String crateId) {
+        if (player != null && crateId != null) {
+            update(player.getUniqueId(), plugin.getCrateManager().indexOf(crateId), 0, true);
         }
     }
 
@@ -71,36 +168,195 @@ public class PityProtectionManager {
             return false;
         }
 
-        return getPityCount(player, crate.getId()) >= Math.max(1, crate.getPityThreshold());
+        return getPityCount(player, crate) >= Math.max(1, crate.getPityThreshold());
     }
 
-    public Reward rollWithPity(Player player, Crate crate, Random random) {
-        if (crate == null) {
-            return null;
+    private void update(UUID playerId, int index, int value, boolean set) {
+        if (index < 0) {
+            return;
+        }
+
+        int size = Math.max(index + 1, plugin.getCrateManager().indexCount());
+        pityCounters.compute(playerId, (uuid, current) -> {
+            Counters counters = current != null ? current : new Counters();
+            synchronized (counters) {
+                // Crates interned after this player's array was created need a larger array
+                counters.ensureCapacity(size);
+                counters.values[index] = set ? value : counters.values[index] + value;
+                counters.changed.set(index);
+            }
+            return counters;
+        });
+        dirtyPlayers.add(playerId);
+    }
+
+    private void readCounters(Connection connection, UUID playerId) throws SQLException {
+        // Looked up before the query: a snapshot that is written meanwhile is still current
+        Snapshot inFlight = unloading.get(playerId);
+        Snapshot failed = inFlight == null ? unsaved.get(playerId) : null;
+        Snapshot pending = inFlight != null ? inFlight : failed;
+
+        CrateManager crateManager = plugin.getCrateManager();
+        int[] stored = new int[crateManager.indexCount()];
+
+        String sql = "SELECT crate_id, counter FROM lc_pity WHERE player_uuid = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, playerId.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int index = crateManager.indexOf(rs.getString("crate_id"));
+                    if (index >= 0 && index < stored.length) {
+                        stored[index] = rs.getInt("counter");
+                    }
+                }
+            }
         }
 
-        List<Reward> candidates = new ArrayList<>();
-        for (Reward reward : crate.getRewards()) {
-            if (reward == null) {
+        pityCounters.compute(playerId, (uuid, current) -> {
+            Counters counters = current != null ? current : new Counters();
+            synchronized (counters) {
+                counters.ensureCapacity(stored.length);
+                if (failed != null && unsaved.remove(playerId, failed)) {
+                    // Its write failed, so the counters it changed are written again with these
+                    counters.changed.or(failed.changed());
+                    dirtyPlayers.add(playerId);
+                }
+                for (int i = 0; i < stored.length; i++) {
+                    int loaded = stored[i];
+                    if (pending != null && i < pending.counters().length) {
+                        loaded = pending.counters()[i];
+                    }
+                    // Opens made before the load finished are counted on top of the stored value
+                    counters.values[i] += loaded;
+                }
+            }
+            return counters;
+        });
+    }
+
+    private List<Snapshot> drainDirty() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (UUID playerId : dirtyPlayers) {
+            if (!dirtyPlayers.remove(playerId)) {
                 continue;
             }
+            Counters counters = pityCounters.get(playerId);
+            Snapshot snapshot = counters != null ? counters.snapshot(playerId) : null;
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        return snapshots;
+    }
 
-            String tier = reward.getTier() != null ? reward.getTier().toLowerCase(Locale.ROOT) : "";
-            if (tier.contains("legendary") || tier.contains("mythic") || tier.contains("rare")) {
-                candidates.add(reward);
+    /**
+     * Writes the snapshots, marking their counters as changed again if the write fails so the
+     * next flush retries them.
+     */
+    private List<Snapshot> restore(List<Snapshot> snapshots) {
+        List<Snapshot> notLoaded = new ArrayList<>();
+        for (Snapshot snapshot : snapshots) {
+            Counters counters = pityCounters.get(snapshot.playerId());
+            if (counters == null) {
+                notLoaded.add(snapshot);
                 continue;
             }
+            synchronized (counters) {
+                counters.changed.or(snapshot.changed());
+            }
+            dirtyPlayers.add(snapshot.playerId());
+        }
+        return notLoaded;
+    }
+
+    private void writeCounters(Connection connection, List<Snapshot> snapshots) throws SQLException {
+        String sql = """
+            INSERT INTO lc_pity (player_uuid, crate_id, counter)
+            VALUES (?, ?, ?)
+            ON DUPLICATE KEY UPDATE counter = VALUES(counter)
+        """;
+
+        if (plugin.getDatabaseManager().getDatabaseType() == DatabaseManager.DatabaseType.SQLITE) {
+            sql = """
+                INSERT OR REPLACE INTO lc_pity (player_uuid, crate_id, counter)
+                VALUES (?, ?, ?)
+            """;
+        }
 
-            if (GUARANTEED_REWARD_TYPES.contains(reward.getType())) {
-                candidates.add(reward);
+        CrateManager crateManager = plugin.getCrateManager();
+        // Reset counters are deleted rather than stored as zero rows
+        try (PreparedStatement upsert = connection.prepareStatement(sql);
+             PreparedStatement delete = connection.prepareStatement(
+                 "DELETE FROM lc_pity WHERE player_uuid = ? AND crate_id = ?")) {
+            for (Snapshot snapshot : snapshots) {
+                BitSet changed = snapshot.changed();
+                for (int i = changed.nextSetBit(0); i >= 0 && i < snapshot.counters().length; i = changed.nextSetBit(i + 1)) {
+                    String crateId = crateManager.idAt(i);
+                    if (crateId == null) {
+                        continue;
+                    }
+                    PreparedStatement stmt = snapshot.counters()[i] > 0 ? upsert : delete;
+                    stmt.setString(1, snapshot.playerId().toString());
+                    stmt.setString(2, crateId);
+                    if (stmt == upsert) {
+                        stmt.setInt(3, snapshot.counters()[i]);
+                    }
+                    stmt.addBatch();
+                }
             }
+            upsert.executeBatch();
+            delete.executeBatch();
+        }
+    }
+
+    /**
+     * Rolls from the crate's precomputed pity pool, falling back to a normal roll if the crate
+     * has no reward that qualifies.
+     */
+    public Reward rollWithPity(Player player, Crate crate, Random random) {
+        if (crate == null) {
+            return null;
         }
 
-        if (candidates.isEmpty()) {
+        Reward reward = crate.rollPity(random);
+        if (reward == null) {
             plugin.getLogger().warning("Pity triggered for crate " + crate.getId() + " but no suitable reward was found. Falling back to normal roll.");
             return crate.roll(random);
         }
+        return reward;
+    }
+
+    /**
+     * A player's counters, and the indices changed since they were last written.
+     */
+    private static final class Counters {
+        private int[] values = new int[0];
+        private final BitSet changed = new BitSet();
+
+        private void ensureCapacity(int size) {
+            if (values.length < size) {
+                values = Arrays.copyOf(values, size);
+            }
+        }
+
+        /**
+         * Copies the counters and takes the changed indices, or returns null if nothing changed.
+         */
+        private synchronized Snapshot snapshot(UUID playerId) {
+            if (changed.isEmpty()) {
+                return null;
+            }
+            Snapshot snapshot = new Snapshot(playerId, values.clone(), (BitSet) changed.clone());
+            changed.clear();
+            return snapshot;
+        }
+    }
 
-        return candidates.get(random.nextInt(candidates.size()));
+    /**
+     * @param counters all of the player's counters, so a rejoin while the write is in flight
+     *                 reads them instead of the stale rows
+     * @param changed  indices of the counters to write
+     */
+    private record Snapshot(UUID playerId, int[] counters, BitSet changed) {
     }
 }
\ No newline at end of file
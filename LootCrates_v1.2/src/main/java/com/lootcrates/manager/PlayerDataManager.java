@@ -1,130 +1,399 @@
-package com.lootcrates.manager;
-
-import com.lootcrates.LootCratesPlugin;
-import com.lootcrates.data.PlayerData;
-import org.bukkit.entity.Player;
-
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-
-public class PlayerDataManager {
-    
-    private final LootCratesPlugin plugin;
-    private final Map<UUID, PlayerData> playerDataCache = new ConcurrentHashMap<>();
-    
-    public PlayerDataManager(LootCratesPlugin plugin) {
-        this.plugin = plugin;
-    }
-    
-    public PlayerData getPlayerData(Player player) {
-        return getPlayerData(player.getUniqueId(), player.getName());
-    }
-    
-    public PlayerData getPlayerData(UUID uuid, String username) {
-        return playerDataCache.computeIfAbsent(uuid, k -> loadPlayerData(uuid, username));
-    }
-    
-    private PlayerData loadPlayerData(UUID uuid, String username) {
-        try (Connection connection = plugin.getDatabaseManager().getConnection()) {
-            String sql = "SELECT * FROM lc_player_data WHERE uuid = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, uuid.toString());
-                
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        PlayerData data = new PlayerData(uuid, username);
-                        data.setTotalOpens(rs.getInt("total_opens"));
-                        data.setMoneyEarned(rs.getDouble("money_earned"));
-                        data.setItemsReceived(rs.getInt("items_received"));
-                        data.setRareFinds(rs.getInt("rare_finds"));
-                        data.setLastOpen(rs.getLong("last_open"));
-                        data.setDataCreated(rs.getLong("data_created"));
-                        data.setDataUpdated(rs.getLong("data_updated"));
-                        return data;
-                    } else {
-                        // Create new player data
-                        PlayerData newData = new PlayerData(uuid, username);
-                        savePlayerData(newData);
-                        return newData;
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to load player data for " + uuid + ": " + e.getMessage());
-            return new PlayerData(uuid, username); // Return empty data as fallback
-        }
-    }
-    
-    public void savePlayerData(PlayerData data) {
-        plugin.getDatabaseManager().executeAsync(connection -> {
-            String sql = """
-                INSERT INTO lc_player_data 
-                (uuid, username, total_opens, money_earned, items_received, rare_finds, last_open, data_created, data_updated)
-                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
-                ON DUPLICATE KEY UPDATE
-                username = VALUES(username),
-                total_opens = VALUES(total_opens),
-                money_earned = VALUES(money_earned),
-                items_received = VALUES(items_received),
-                rare_finds = VALUES(rare_finds),
-                last_open = VALUES(last_open),
-                data_updated = VALUES(data_updated)
-            """;
-            
-            // For SQLite, use INSERT OR REPLACE
-            if (plugin.getDatabaseManager().getDatabaseType() == 
-                com.lootcrates.database.DatabaseManager.DatabaseType.SQLITE) {
-                sql = """
-                    INSERT OR REPLACE INTO lc_player_data 
-                    (uuid, username, total_opens, money_earned, items_received, rare_finds, last_open, data_created, data_updated)
-                    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
-                """;
-            }
-            
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, data.getUuid().toString());
-                stmt.setString(2, data.getUsername());
-                stmt.setInt(3, data.getTotalOpens());
-                stmt.setDouble(4, data.getMoneyEarned());
-                stmt.setInt(5, data.getItemsReceived());
-                stmt.setInt(6, data.getRareFinds());
-                stmt.setLong(7, data.getLastOpen());
-                stmt.setLong(8, data.getDataCreated());
-                stmt.setLong(9, System.currentTimeMillis());
-                
-                stmt.executeUpdate();
-            }
-        });
-    }
-    
-    public void saveAllData() {
-        for (PlayerData data : playerDataCache.values()) {
-            savePlayerData(data);
-        }
-    }
-    
-    public void unloadPlayerData(UUID uuid) {
-        PlayerData data = playerDataCache.remove(uuid);
-        if (data != null) {
-            savePlayerData(data);
-        }
-    }
-    
-    public void updatePlayerOpening(Player player, String crateId, double moneyReward, int itemsReward, boolean wasRare) {
-        PlayerData data = getPlayerData(player);
-        data.setTotalOpens(data.getTotalOpens() + 1);
-        data.setMoneyEarned(data.getMoneyEarned() + moneyReward);
-        data.setItemsReceived(data.getItemsReceived() + itemsReward);
-        if (wasRare) {
-            data.setRareFinds(data.getRareFinds() + 1);
-        }
-        data.setLastOpen(System.currentTimeMillis());
-        
-        savePlayerData(data);
-    }
-}
\ No newline at end of file
+package com.lootcrates.manager;
+
+import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.data.PlayerData;
+import com.lootcrates.database.DatabaseManager;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+public class PlayerDataManager {
+    
+    private final LootCratesPlugin plugin;
+    private final Map<UUID, PlayerData> playerDataCache = new ConcurrentHashMap<>();
+    private final Map<UUID, CompletableFuture<PlayerData>> pendingLoads = new ConcurrentHashMap<>();
+    
+    // Write-behind: players whose cached data differs from the database
+    private final Set<UUID> dirtyPlayers = ConcurrentHashMap.newKeySet();
+    // Snapshots of players no longer cached whose last write has not succeeded yet; retried
+    // by the next flush and used instead of the database row if the player loads again
+    private final Map<UUID, PlayerData> unsaved = new ConcurrentHashMap<>();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushNanosTotal = new AtomicLong();
+    private volatile long lastFlushNanos;
+    
+    // 9 columns per row keeps a full statement under SQLite's 999 bind parameter limit
+    private static final int ROWS_PER_STATEMENT = 100;
+    
+    public PlayerDataManager(LootCratesPlugin plugin) {
+        this.plugin = plugin;
+    }
+    
+    public PlayerData getPlayerData(Player player) {
+        return getPlayerData(player.getUniqueId(), player.getName());
+    }
+    
+    /**
+     * Returns cached data, loading it on the calling thread on a cache miss. Online players
+     * are prefetched at login, so on the main thread this only touches the database for
+     * offline lookups; prefer {@link #getPlayerDataAsync(UUID, String)} there. While a load
+     * is still running the main thread gets empty, uncached data instead of waiting for it.
+     */
+    public PlayerData getPlayerData(UUID uuid, String username) {
+        PlayerData cached = playerDataCache.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+        
+        CompletableFuture<PlayerData> pending = pendingLoads.get(uuid);
+        if (pending != null) {
+            if (pending.isDone() || !Bukkit.isPrimaryThread()) {
+                return pending.join();
+            }
+            return new PlayerData(uuid, username);
+        }
+        
+        // Load outside the map so no bin lock is held during I/O
+        return cache(uuid, loadPlayerData(uuid, username));
+    }
+    
+    /**
+     * Returns the player's data without blocking, loading it on the database executor if needed.
+     * Concurrent calls for the same player share one load.
+     */
+    public CompletableFuture<PlayerData> getPlayerDataAsync(UUID uuid, String username) {
+        PlayerData cached = playerDataCache.get(uuid);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        
+        CompletableFuture<PlayerData> created = new CompletableFuture<>();
+        CompletableFuture<PlayerData> pending = pendingLoads.putIfAbsent(uuid, created);
+        if (pending != null) {
+            return pending;
+        }
+        
+        plugin.getDatabaseManager().supplyAsync(connection -> readPlayerData(connection, uuid, username))
+            .whenComplete((data, error) -> {
+                if (error != null) {
+                    plugin.getLogger().severe("Failed to load player data for " + uuid + ": " + error.getMessage());
+                    data = new PlayerData(uuid, username);
+                }
+                // Only cache if the player was not unloaded while the query ran
+                PlayerData result = pendingLoads.remove(uuid, created) ? cache(uuid, data) : data;
+                created.complete(result);
+            });
+        return created;
+    }
+    
+    /**
+     * Loads a player's data on the calling thread, used from the async pre-login event so the
+     * data is cached before the player joins without queueing behind the database executor.
+     */
+    public void preloadPlayerData(UUID uuid, String username) {
+        if (playerDataCache.containsKey(uuid)) {
+            return;
+        }
+        
+        CompletableFuture<PlayerData> created = new CompletableFuture<>();
+        CompletableFuture<PlayerData> pending = pendingLoads.putIfAbsent(uuid, created);
+        if (pending != null) {
+            pending.join();
+            return;
+        }
+        
+        PlayerData data = loadPlayerData(uuid, username);
+        // Only cache if the player was not unloaded while the query ran
+        created.complete(pendingLoads.remove(uuid, created) ? cache(uuid, data) : data);
+    }
+    
+    private PlayerData cache(UUID uuid, PlayerData data) {
+        PlayerData existing = playerDataCache.putIfAbsent(uuid, data);
+        return existing != null ? existing : data;
+    }
+    
+    private PlayerData loadPlayerData(UUID uuid, String username) {
+        try (Connection connection = plugin.getDatabaseManager().getReadConnection()) {
+            return readPlayerData(connection, uuid, username);
+        } catch (SQLException e) {
+            plugin.getLogger().severe("Failed to load player data for " + uuid + ": " + e.getMessage());
+            return new PlayerData(uuid, username); // Return empty data as fallback
+        }
+    }
+    
+    private PlayerData readPlayerData(Connection connection, UUID uuid, String username) throws SQLException {
+        PlayerData pending = unsaved.remove(uuid);
+        if (pending != null) {
+            // Newer than the stored row, keep it pending in the cache instead
+            dirtyPlayers.add(uuid);
+            return pending.copy();
+        }
+        
+        String sql = "SELECT * FROM lc_player_data WHERE uuid = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, uuid.toString());
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    PlayerData data = new PlayerData(uuid, username != null ? username : rs.getString("username"));
+                    data.setTotalOpens(rs.getInt("total_opens"));
+                    data.setMoneyEarned(rs.getDouble("money_earned"));
+                    data.setItemsReceived(rs.getInt("items_received"));
+                    data.setRareFinds(rs.getInt("rare_finds"));
+                    data.setLastOpen(rs.getLong("last_open"));
+                    data.setDataCreated(rs.getLong("data_created"));
+                    data.setDataUpdated(rs.getLong("data_updated"));
+                    return data;
+                } else {
+                    // Create new player data, persisted with the next flush
+                    PlayerData newData = new PlayerData(uuid, username);
+                    if (username != null) {
+                        dirtyPlayers.add(uuid);
+                    }
+                    return newData;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the data, taken on the calling thread, on the database executor.
+     */
+    public void savePlayerData(PlayerData data) {
+        PlayerData snapshot = data.copy();
+        if (!playerDataCache.containsKey(snapshot.getUuid())) {
+            unsaved.put(snapshot.getUuid(), snapshot);
+        }
+        List<PlayerData> rows = List.of(snapshot);
+        writeTracked(rows);
+    }
+    
+    /**
+     * Writes every cached player in one transaction on the database executor. Snapshots are
+     * taken on the calling thread, which must be the main thread.
+     */
+    public void saveAllData() {
+        List<PlayerData> rows = new ArrayList<>(playerDataCache.size());
+        for (Map.Entry<UUID, PlayerData> entry : playerDataCache.entrySet()) {
+            dirtyPlayers.remove(entry.getKey());
+            if (entry.getValue().getUsername() != null) {
+                rows.add(entry.getValue().copy());
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        
+        writeTracked(rows);
+    }
+    
+    /**
+     * Writes every player with pending changes, and retries failed writes of players who are
+     * no longer cached, in a single batch on the database executor. Snapshots are taken on the
+     * calling thread, which must be the main thread.
+     */
+    public void flushDirty() {
+        List<PlayerData> rows = drainDirty();
+        for (PlayerData row : unsaved.values()) {
+            if (playerDataCache.containsKey(row.getUuid())) {
+                // Loaded again since, the cached data is newer
+                unsaved.remove(row.getUuid(), row);
+            } else {
+                rows.add(row);
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        
+        writeTracked(rows);
+    }
+    
+    public void unloadPlayerData(UUID uuid) {
+        pendingLoads.remove(uuid);
+        PlayerData data = playerDataCache.remove(uuid);
+        if (data != null && dirtyPlayers.remove(uuid)) {
+            PlayerData snapshot = data.copy();
+            // Kept until written, so a failed write is retried and a quick rejoin reads it
+            unsaved.put(uuid, snapshot);
+            List<PlayerData> rows = List.of(snapshot);
+            writeTracked(rows);
+        }
+    }
+    
+    public void updatePlayerOpening(Player player, String crateId, double moneyReward, int itemsReward, boolean wasRare) {
+        updatePlayerOpening(player, crateId, 1, moneyReward, itemsReward, wasRare ? 1 : 0);
+    }
+    
+    /**
+     * Records several openings at once, used by bulk opening. If the player's data is still
+     * loading the update is applied once it arrives instead of waiting for it.
+     */
+    public void updatePlayerOpening(Player player, String crateId, int opens, double moneyReward, int itemsReward, int rareFinds) {
+        UUID uuid = player.getUniqueId();
+        PlayerData data = playerDataCache.get(uuid);
+        if (data != null) {
+            addOpening(data, opens, moneyReward, itemsReward, rareFinds);
+            dirtyPlayers.add(uuid);
+            return;
+        }
+        
+        getPlayerDataAsync(uuid, player.getName()).thenAccept(loaded -> Bukkit.getScheduler().runTask(plugin, () -> {
+            PlayerData current = playerDataCache.get(uuid);
+            if (current != null) {
+                addOpening(current, opens, moneyReward, itemsReward, rareFinds);
+                dirtyPlayers.add(uuid);
+            } else {
+                // The player left before the load finished, write the loaded row directly
+                addOpening(loaded, opens, moneyReward, itemsReward, rareFinds);
+                savePlayerData(loaded);
+            }
+        }));
+    }
+    
+    private static void addOpening(PlayerData data, int opens, double moneyReward, int itemsReward, int rareFinds) {
+        data.setTotalOpens(data.getTotalOpens() + opens);
+        data.setMoneyEarned(data.getMoneyEarned() + moneyReward);
+        data.setItemsReceived(data.getItemsReceived() + itemsReward);
+        data.setRareFinds(data.getRareFinds() + rareFinds);
+        data.setLastOpen(System.currentTimeMillis());
+    }
+    
+    // Write-behind statistics
+    public int getPendingWrites() { return dirtyPlayers.size(); }
+    public long getFlushCount() { return flushCount.get(); }
+    public long getFlushedRows() { return flushedRows.get(); }
+    public double getLastFlushMillis() { return lastFlushNanos / 1_000_000.0; }
+    
+    public double getAverageFlushMillis() {
+        long flushes = flushCount.get();
+        return flushes > 0 ? flushNanosTotal.get() / 1_000_000.0 / flushes : 0.0;
+    }
+    
+    private List<PlayerData> drainDirty() {
+        List<PlayerData> rows = new ArrayList<>();
+        for (UUID uuid : dirtyPlayers) {
+            // Remove before copying so a concurrent update marks the player dirty again
+            if (!dirtyPlayers.remove(uuid)) {
+                continue;
+            }
+            PlayerData data = playerDataCache.get(uuid);
+            if (data != null) {
+                rows.add(data.copy());
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Queues a write of the rows. Until it has committed, rows of players who are no longer
+     * cached stay in {@code unsaved}; if it fails, the rows are kept pending for the next flush.
+     */
+    private void writeTracked(List<PlayerData> rows) {
+        plugin.getDatabaseManager().executeAsync(connection -> writeRowsTimed(connection, rows))
+            .whenComplete((ignored, error) -> {
+                for (PlayerData row : rows) {
+                    if (error == null) {
+                        unsaved.remove(row.getUuid(), row);
+                    } else if (playerDataCache.containsKey(row.getUuid()) || pendingLoads.containsKey(row.getUuid())) {
+                        dirtyPlayers.add(row.getUuid());
+                    } else {
+                        // A newer snapshot of a player who left may already be waiting
+                        unsaved.putIfAbsent(row.getUuid(), row);
+                    }
+                }
+            });
+    }
+    
+    private void writeRowsTimed(Connection connection, List<PlayerData> rows) throws SQLException {
+        long start = System.nanoTime();
+        writeRows(connection, rows);
+        
+        long elapsed = System.nanoTime() - start;
+        lastFlushNanos = elapsed;
+        flushCount.incrementAndGet();
+        flushedRows.addAndGet(rows.size());
+        flushNanosTotal.addAndGet(elapsed);
+        plugin.debug(String.format("Flushed %d player rows in %.2fms (%d pending)",
+            rows.size(), elapsed / 1_000_000.0, dirtyPlayers.size()));
+    }
+    
+    /**
+     * Writes rows as multi-row upserts of up to {@link #ROWS_PER_STATEMENT} rows each.
+     */
+    private void writeRows(Connection connection, List<PlayerData> rows) throws SQLException {
+        long now = System.currentTimeMillis();
+        String fullChunkSql = null;
+        
+        for (int start = 0; start < rows.size(); start += ROWS_PER_STATEMENT) {
+            List<PlayerData> chunk = rows.subList(start, Math.min(rows.size(), start + ROWS_PER_STATEMENT));
+            String sql;
+            if (chunk.size() == ROWS_PER_STATEMENT) {
+                if (fullChunkSql == null) {
+                    fullChunkSql = upsertSql(ROWS_PER_STATEMENT);
+                }
+                sql = fullChunkSql;
+            } else {
+                sql = upsertSql(chunk.size());
+            }
+            
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                int index = 1;
+                for (PlayerData data : chunk) {
+                    stmt.setString(index++, data.getUuid().toString());
+                    stmt.setString(index++, data.getUsername());
+                    stmt.setInt(index++, data.getTotalOpens());
+                    stmt.setDouble(index++, data.getMoneyEarned());
+                    stmt.setInt(index++, data.getItemsReceived());
+                    stmt.setInt(index++, data.getRareFinds());
+                    stmt.setLong(index++, data.getLastOpen());
+                    stmt.setLong(index++, data.getDataCreated());
+                    stmt.setLong(index++, now);
+                }
+                stmt.executeUpdate();
+            }
+        }
+    }
+    
+    private String upsertSql(int rowCount) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < rowCount; i++) {
+            values.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+        
+        String insert = "INTO lc_player_data "
+            + "(uuid, username, total_opens, money_earned, items_received, rare_finds, last_open, data_created, data_updated) "
+            + "VALUES " + values;
+        
+        // For SQLite, use INSERT OR REPLACE
+        if (plugin.getDatabaseManager().getDatabaseType() == DatabaseManager.DatabaseType.SQLITE) {
+            return "INSERT OR REPLACE " + insert;
+        }
+        
+        return "INSERT " + insert + """
+
+            ON DUPLICATE KEY UPDATE
+            username = VALUES(username),
+            total_opens = VALUES(total_opens),
+            money_earned = VALUES(money_earned),
+            items_received = VALUES(items_received),
+            rare_finds = VALUES(rare_finds),
+            last_open = VALUES(last_open),
+            data_updated = VALUES(data_updated)
+        """;
+    }
+}
@@ -1,23 +1,57 @@
 package com.lootcrates.manager;
 
 import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.command.CrateOpener;
+import com.lootcrates.crate.Crate;
+import com.lootcrates.util.MessageManager;
+import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.time.LocalDate;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
 
+/**
+ * Rewards granted to players while they are offline, stored in {@code lc_offline_queue}.
+ * <p>
+ * Each row holds a compact payload, {@code K:<amount>} for keys, {@code O:<count>} for
+ * crate openings or {@code X:<amount>} for experience that could not be given before the
+ * player left. On join a player's rows are claimed, read and deleted in one queued write,
+ * and only handed out, a few per tick, once that write has committed, so a row can never be
+ * delivered twice. Rewards that could not be handed out because the player left or the
+ * plugin was disabled are queued again.
+ */
 public class QueueManager {
     
+    private static final char KIND_KEYS = 'K';
+    private static final char KIND_OPENS = 'O';
+    private static final char KIND_XP = 'X';
+    
     private final LootCratesPlugin plugin;
     private final Map<UUID, Integer> queueCounts = new ConcurrentHashMap<>();
+    private final Queue<QueuedReward> pendingInserts = new ConcurrentLinkedQueue<>();
+    private final Set<UUID> delivering = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, Delivery> deliveries = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final int maxQueueSize;
+    private final int batchSize;
     
     public QueueManager(LootCratesPlugin plugin) {
         this.plugin = plugin;
+        this.enabled = plugin.getConfig().getBoolean("settings.offline_queue.enabled", true);
+        this.maxQueueSize = Math.max(1, plugin.getConfig().getInt("settings.offline_queue.max_queue_size", 100));
+        this.batchSize = Math.max(1, plugin.getConfig().getInt("settings.offline_queue.delivery_batch_size", 10));
         loadQueueCounts();
     }
     
@@ -36,8 +70,333 @@ public class QueueManager {
         });
     }
     
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public int getQueuedCount(UUID playerId) {
+        return queueCounts.getOrDefault(playerId, 0);
+    }
+    
+    /**
+     * Queues keys for an offline player.
+     * @return false if the queue is disabled or the player's queue is full
+     */
+    public boolean enqueueKeys(UUID playerId, Crate crate, int amount) {
+        return enqueue(playerId, crate, KIND_KEYS, amount);
+    }
+    
+    /**
+     * Queues crate openings for an offline player.
+     * @return false if the queue is disabled or the player's queue is full
+     */
+    public boolean enqueueOpens(UUID playerId, Crate crate, int count) {
+        return enqueue(playerId, crate, KIND_OPENS, count);
+    }
+    
+    /**
+     * Queues experience that was earned but not given before the player left. The queue size
+     * limit does not apply, the experience was already won.
+     * @return false if the queue is disabled
+     */
+    public boolean enqueueExperience(UUID playerId, int amount) {
+        if (!enabled || playerId == null || amount <= 0) {
+            return false;
+        }
+        
+        queueCounts.merge(playerId, 1, Integer::sum);
+        pendingInserts.add(new QueuedReward(0L, playerId, null, KIND_XP, amount));
+        saveAllQueues();
+        return true;
+    }
+    
+    private boolean enqueue(UUID playerId, Crate crate, char kind, int amount) {
+        if (!enabled || playerId == null || crate == null || amount <= 0) {
+            return false;
+        }
+        
+        boolean[] accepted = new boolean[1];
+        queueCounts.compute(playerId, (uuid, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= maxQueueSize) {
+                return count;
+            }
+            accepted[0] = true;
+            return current + 1;
+        });
+        if (!accepted[0]) {
+            return false;
+        }
+        
+        pendingInserts.add(new QueuedReward(0L, playerId, crate.getId(), kind, amount));
+        saveAllQueues();
+        return true;
+    }
+    
+    /**
+     * Writes queued rewards that have not been stored yet.
+     */
     public void saveAllQueues() {
-        // Implementation for saving queues
+        List<QueuedReward> batch = new ArrayList<>();
+        QueuedReward reward;
+        while ((reward = pendingInserts.poll()) != null) {
+            batch.add(reward);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        plugin.getDatabaseManager().executeAsync(connection -> {
+            String sql = "INSERT INTO lc_offline_queue (player_uuid, crate_id, payload, created_at) VALUES (?, ?, ?, ?)";
+            long now = System.currentTimeMillis();
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                for (QueuedReward queued : batch) {
+                    stmt.setString(1, queued.playerId().toString());
+                    stmt.setString(2, queued.crateId());
+                    stmt.setString(3, queued.payload());
+                    stmt.setLong(4, now);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                // Nothing was stored, retried by the next save
+                pendingInserts.addAll(batch);
+            }
+        });
+    }
+    
+    /**
+     * Stops running deliveries and queues what they had not handed out yet, then writes all
+     * unsaved rewards. Used on shutdown.
+     */
+    public void shutdown() {
+        for (Delivery delivery : deliveries.values()) {
+            delivery.stop();
+        }
+        saveAllQueues();
+    }
+    
+    /**
+     * Notifies a joining player about queued rewards and starts handing them out.
+     */
+    public void deliverOnJoin(Player player) {
+        UUID playerId = player.getUniqueId();
+        int queued = getQueuedCount(playerId);
+        if (!enabled || queued <= 0 || !delivering.add(playerId)) {
+            return;
+        }
+        
+        plugin.getMessageManager().sendMessageWithPrefix(player, "queue.offline_rewards",
+            MessageManager.Placeholder.of("count", queued),
+            MessageManager.Placeholder.of("s", queued > 1 ? "s" : ""));
+        plugin.getMessageManager().sendMessageWithPrefix(player, "queue.claiming_rewards");
+        
+        // Queued behind pending inserts and committed before anything is handed out
+        plugin.getDatabaseManager().supplyWriteAsync(connection -> claimQueue(connection, playerId))
+            .whenComplete((rewards, error) -> {
+                if (error != null) {
+                    delivering.remove(playerId);
+                    plugin.getLogger().log(Level.WARNING, "Failed to load offline rewards for " + playerId, error);
+                    return;
+                }
+                if (!plugin.isEnabled()) {
+                    requeue(playerId, rewards);
+                    return;
+                }
+                Bukkit.getScheduler().runTask(plugin, () -> startDelivery(playerId, rewards));
+            });
+    }
+    
+    private void startDelivery(UUID playerId, List<QueuedReward> rewards) {
+        queueCounts.computeIfPresent(playerId, (uuid, count) -> count > rewards.size() ? count - rewards.size() : null);
+        Player player = Bukkit.getPlayer(playerId);
+        if (rewards.isEmpty() || player == null || !player.isOnline()) {
+            requeue(playerId, rewards);
+            delivering.remove(playerId);
+            return;
+        }
+        
+        Delivery delivery = new Delivery(playerId, rewards);
+        deliveries.put(playerId, delivery);
+        delivery.task = Bukkit.getScheduler().runTaskTimer(plugin, delivery, 1L, 1L);
+    }
+    
+    /**
+     * Reads a player's queued rewards and deletes them in the same transaction.
+     */
+    private List<QueuedReward> claimQueue(Connection connection, UUID playerId) throws SQLException {
+        List<QueuedReward> rewards = readQueue(connection, playerId);
+        List<Long> ids = new ArrayList<>(rewards.size());
+        for (QueuedReward reward : rewards) {
+            ids.add(reward.id());
+        }
+        delete(connection, ids);
+        return rewards;
+    }
+    
+    private List<QueuedReward> readQueue(Connection connection, UUID playerId) throws SQLException {
+        List<QueuedReward> rewards = new ArrayList<>();
+        String sql = "SELECT id, crate_id, payload FROM lc_offline_queue WHERE player_uuid = ? ORDER BY id";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, playerId.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong("id");
+                    String crateId = rs.getString("crate_id");
+                    String payload = rs.getString("payload");
+                    QueuedReward reward = QueuedReward.parse(id, playerId, crateId, payload);
+                    if (reward == null) {
+                        plugin.getLogger().warning("Discarding malformed offline reward #" + id + " for " + playerId + ": " + payload);
+                        reward = new QueuedReward(id, playerId, crateId, '?', 0);
+                    }
+                    rewards.add(reward);
+                }
+            }
+        }
+        return rewards;
+    }
+    
+    private void delete(Connection connection, List<Long> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        
+        StringBuilder sql = new StringBuilder("DELETE FROM lc_offline_queue WHERE id IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setLong(i + 1, ids.get(i));
+            }
+            stmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * Queues claimed rewards again, e.g. when the player left before they were handed out.
+     * The queue size limit does not apply, the rewards were already counted once.
+     */
+    private void requeue(UUID playerId, List<QueuedReward> rewards) {
+        int requeued = 0;
+        for (QueuedReward reward : rewards) {
+            if (reward.kind() == KIND_KEYS || reward.kind() == KIND_OPENS || reward.kind() == KIND_XP) {
+                pendingInserts.add(new QueuedReward(0L, playerId, reward.crateId(), reward.kind(), reward.amount()));
+                requeued++;
+            }
+        }
+        if (requeued > 0) {
+            queueCounts.merge(playerId, requeued, Integer::sum);
+            saveAllQueues();
+        }
+    }
+    
+    private boolean deliver(Player player, QueuedReward reward) {
+        if (reward.kind() == KIND_XP) {
+            player.giveExp(reward.amount());
+            return true;
+        }
+        
+        Crate crate = reward.crateId() != null ? plugin.getCrateManager().get(reward.crateId()) : null;
+        if (crate == null) {
+            if (reward.kind() != '?') {
+                plugin.getLogger().warning("Discarding offline reward #" + reward.id() + " for unknown crate " + reward.crateId());
+            }
+            return false;
+        }
+        
+        switch (reward.kind()) {
+            case KIND_KEYS -> plugin.getCrateManager().giveKey(player, crate.getId(), reward.amount());
+            case KIND_OPENS -> CrateOpener.forceOpenMany(plugin, player, crate, reward.amount());
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Hands out one player's claimed rewards, a batch per tick. Stops early when the player
+     * leaves, the remaining rewards are queued again for their next join.
+     */
+    private final class Delivery implements Runnable {
+        private final UUID playerId;
+        private final List<QueuedReward> rewards;
+        private BukkitTask task;
+        private int position;
+        private int claimed;
+        
+        private Delivery(UUID playerId, List<QueuedReward> rewards) {
+            this.playerId = playerId;
+            this.rewards = rewards;
+        }
+        
+        @Override
+        public void run() {
+            Player player = Bukkit.getPlayer(playerId);
+            if (player == null || !player.isOnline()) {
+                stop();
+                return;
+            }
+            
+            int end = Math.min(rewards.size(), position + batchSize);
+            for (; position < end; position++) {
+                QueuedReward reward = rewards.get(position);
+                try {
+                    if (deliver(player, reward)) {
+                        claimed++;
+                    }
+                } catch (RuntimeException ex) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to deliver offline reward #" + reward.id() + " to " + player.getName(), ex);
+                }
+            }
+            
+            if (position >= rewards.size()) {
+                plugin.getMessageManager().sendMessageWithPrefix(player, "queue.rewards_claimed",
+                    MessageManager.Placeholder.of("count", claimed),
+                    MessageManager.Placeholder.of("s", claimed != 1 ? "s" : ""));
+                finish();
+            }
+        }
+        
+        /**
+         * Stops handing out rewards and queues the ones not delivered yet.
+         */
+        private void stop() {
+            requeue(playerId, rewards.subList(position, rewards.size()));
+            position = rewards.size();
+            finish();
+        }
+        
+        private void finish() {
+            if (task != null) {
+                task.cancel();
+            }
+            deliveries.remove(playerId, this);
+            delivering.remove(playerId);
+        }
+    }
+    
+    private record QueuedReward(long id, UUID playerId, String crateId, char kind, int amount) {
+        
+        private String payload() {
+            return kind + ":" + amount;
+        }
+        
+        private static QueuedReward parse(long id, UUID playerId, String crateId, String payload) {
+            if (payload == null || payload.length() < 3 || payload.charAt(1) != ':') {
+                return null;
+            }
+            try {
+                int amount = Integer.parseInt(payload.substring(2));
+                return amount > 0 ? new QueuedReward(id, playerId, crateId, payload.charAt(0), amount) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
     }
 }
-
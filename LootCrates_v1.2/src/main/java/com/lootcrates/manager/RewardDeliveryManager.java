@@ -0,0 +1,166 @@
+package com.lootcrates.manager;
+
+import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.economy.EconomyManager;
+import com.lootcrates.util.MetricsCollector;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces money, PlayerPoints and experience grants so each player receives at most one
+ * economy call per delivery window.
+ * <p>
+ * Grants are queued by the opening code and applied on the main thread by a repeating task.
+ * Each run serves players in the order their first grant was queued and stops after the
+ * configured number of players, so a burst of openings is spread over several ticks instead
+ * of stalling one. Pending grants are applied right away when a player quits and when the
+ * plugin is disabled. Experience can only be given to an online player, so experience still
+ * pending for a player who is gone is handed to the offline queue for their next join.
+ */
+public class RewardDeliveryManager {
+
+    private final LootCratesPlugin plugin;
+    private final int maxPlayersPerRun;
+    private final Map<UUID, PendingGrant> pending = new ConcurrentHashMap<>();
+    private final Queue<UUID> order = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong grants = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public RewardDeliveryManager(LootCratesPlugin plugin) {
+        this.plugin = plugin;
+        this.maxPlayersPerRun = Math.max(1, plugin.getConfig().getInt("settings.reward_delivery.max_players_per_tick", 50));
+    }
+
+    public void queueMoney(Player player, double amount) {
+        if (player != null && amount > 0) {
+            queue(player.getUniqueId(), grant -> grant.money += amount);
+        }
+    }
+
+    public void queuePoints(Player player, int amount) {
+        if (player != null && amount != 0) {
+            queue(player.getUniqueId(), grant -> grant.points += amount);
+        }
+    }
+
+    public void queueExperience(Player player, int amount) {
+        if (player != null && amount > 0) {
+            queue(player.getUniqueId(), grant -> grant.xp += amount);
+        }
+    }
+
+    /**
+     * Applies pending grants for up to the configured number of players. Runs on the main
+     * thread once per delivery window.
+     */
+    public void deliverPending() {
+        UUID playerId;
+        for (int served = 0; served < maxPlayersPerRun && (playerId = order.poll()) != null; served++) {
+            deliver(playerId, Bukkit.getPlayer(playerId));
+        }
+    }
+
+    /**
+     * Applies everything queued for a player immediately, used when they leave.
+     */
+    public void flush(Player player) {
+        if (player != null) {
+            deliver(player.getUniqueId(), player);
+        }
+    }
+
+    /**
+     * Applies all pending grants on the calling thread, used on shutdown.
+     */
+    public void flushAll() {
+        UUID playerId;
+        while ((playerId = order.poll()) != null) {
+            deliver(playerId, Bukkit.getPlayer(playerId));
+        }
+    }
+
+    public Stats getStats() {
+        long count = deliveries.get();
+        double average = count > 0 ? totalLatencyNanos.get() / (double) count / 1_000_000.0 : 0.0;
+        return new Stats(count, grants.get(), pending.size(), average, maxLatencyNanos.get() / 1_000_000.0);
+    }
+
+    private void queue(UUID playerId, Consumer<PendingGrant> change) {
+        boolean[] created = new boolean[1];
+        pending.compute(playerId, (uuid, grant) -> {
+            if (grant == null) {
+                grant = new PendingGrant(System.nanoTime());
+                created[0] = true;
+            }
+            change.accept(grant);
+            grant.count++;
+            return grant;
+        });
+        if (created[0]) {
+            order.add(playerId);
+        }
+    }
+
+    private void deliver(UUID playerId, Player player) {
+        PendingGrant grant = pending.remove(playerId);
+        if (grant == null) {
+            return;
+        }
+
+        EconomyManager economy = plugin.getEconomyManager();
+        if (grant.money > 0 && economy != null) {
+            if (player != null) {
+                economy.deposit(player, grant.money);
+            } else {
+                economy.deposit(Bukkit.getOfflinePlayer(playerId), grant.money);
+            }
+        }
+        if (grant.points != 0 && economy != null) {
+            economy.addPlayerPoints(player != null ? player : Bukkit.getOfflinePlayer(playerId), grant.points);
+        }
+        if (grant.xp > 0) {
+            if (player != null) {
+                player.giveExp(grant.xp);
+            } else if (!plugin.getQueueManager().enqueueExperience(playerId, grant.xp)) {
+                plugin.getLogger().warning("Dropped " + grant.xp + " XP for " + playerId + " who is no longer online");
+            }
+        }
+
+        long latency = System.nanoTime() - grant.queuedAt;
+        deliveries.incrementAndGet();
+        grants.addAndGet(grant.count);
+        totalLatencyNanos.addAndGet(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        plugin.getMetrics().record(MetricsCollector.Stage.DELIVERY, latency);
+    }
+
+    /**
+     * Delivery counters. Latency is measured from the first queued grant of a window until
+     * it was applied.
+     */
+    public record Stats(long deliveries, long grants, int pendingPlayers, double averageLatencyMillis, double maxLatencyMillis) {
+    }
+
+    private static final class PendingGrant {
+        private final long queuedAt;
+        private double money;
+        private int points;
+        private int xp;
+        private int count;
+
+        private PendingGrant(long queuedAt) {
+            this.queuedAt = queuedAt;
+        }
+    }
+}
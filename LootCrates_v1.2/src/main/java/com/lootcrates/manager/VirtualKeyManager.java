@@ -0,0 +1,294 @@
+package com.lootcrates.manager;
+
+import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.crate.Crate;
+import com.lootcrates.crate.CrateManager;
+import com.lootcrates.database.DatabaseManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Virtual key balances stored in {@code lc_virtual_keys} instead of as items.
+ * <p>
+ * Balances of online players are held in memory and debited or credited atomically.
+ * Every change is also recorded as a pending delta which is flushed to the database in
+ * batches as an additive upsert, so the database never loses a concurrent credit and
+ * players who are offline can be credited without loading their balance.
+ * <p>
+ * Flushed deltas count as in flight until their write has run. Balances are read on the
+ * writer queue, so the stored amount already contains every earlier write, and pending and
+ * in-flight deltas are added on top.
+ */
+public class VirtualKeyManager {
+
+    private final LootCratesPlugin plugin;
+    private final boolean enabled;
+    private final Map<UUID, KeyAccount> accounts = new ConcurrentHashMap<>();
+    private final Set<UUID> dirty = ConcurrentHashMap.newKeySet();
+
+    public VirtualKeyManager(LootCratesPlugin plugin) {
+        this.plugin = plugin;
+        this.enabled = plugin.getConfig().getBoolean("settings.keys.virtual", false);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void loadPlayer(UUID playerId) {
+        if (!enabled || playerId == null) {
+            return;
+        }
+
+        KeyAccount account = accounts.computeIfAbsent(playerId, uuid -> new KeyAccount());
+        synchronized (account) {
+            account.online = true;
+            if (account.loaded) {
+                return;
+            }
+        }
+
+        // Ordered with the delta writes, so none is counted twice or missed. Applied once the
+        // batch has committed, after the deltas written before it have been settled.
+        plugin.getDatabaseManager().supplyWriteAsync(connection -> readBalances(connection, playerId))
+            .whenComplete((stored, error) -> {
+                if (error != null) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to load virtual keys for " + playerId, error);
+                    return;
+                }
+                synchronized (account) {
+                    account.ensureCapacity(stored.length);
+                    int[] balance = Arrays.copyOf(stored, account.pending.length);
+                    for (int i = 0; i < account.pending.length; i++) {
+                        balance[i] += account.pending[i] + account.inFlight[i];
+                    }
+                    account.balance = balance;
+                    account.loaded = true;
+                }
+            });
+    }
+
+    public void unloadPlayer(UUID playerId) {
+        KeyAccount account = playerId != null ? accounts.get(playerId) : null;
+        if (account == null) {
+            return;
+        }
+
+        synchronized (account) {
+            account.online = false;
+        }
+        flush(playerId);
+    }
+
+    public int getBalance(UUID playerId, Crate crate) {
+        KeyAccount account = playerId != null ? accounts.get(playerId) : null;
+        if (account == null || crate == null || crate.getIndex() < 0) {
+            return 0;
+        }
+
+        synchronized (account) {
+            int index = crate.getIndex();
+            return account.loaded && index < account.balance.length ? account.balance[index] : 0;
+        }
+    }
+
+    public void credit(UUID playerId, Crate crate, int amount) {
+        if (playerId == null || crate == null || crate.getIndex() < 0 || amount <= 0) {
+            return;
+        }
+
+        KeyAccount account = accounts.computeIfAbsent(playerId, uuid -> new KeyAccount());
+        synchronized (account) {
+            int index = crate.getIndex();
+            account.ensureCapacity(index + 1);
+            account.balance[index] += amount;
+            account.pending[index] += amount;
+        }
+        dirty.add(playerId);
+    }
+
+    /**
+     * Removes keys from a loaded balance.
+     * @return false if the balance is not loaded yet or too small
+     */
+    public boolean debit(UUID playerId, Crate crate, int amount) {
+        KeyAccount account = playerId != null ? accounts.get(playerId) : null;
+        if (account == null || crate == null || crate.getIndex() < 0 || amount <= 0) {
+            return false;
+        }
+
+        synchronized (account) {
+            int index = crate.getIndex();
+            if (!account.loaded || index >= account.balance.length || account.balance[index] < amount) {
+                return false;
+            }
+            account.balance[index] -= amount;
+            account.pending[index] -= amount;
+        }
+        dirty.add(playerId);
+        return true;
+    }
+
+    /**
+     * Writes all pending deltas asynchronously.
+     */
+    public void flushAll() {
+        for (UUID playerId : dirty) {
+            flush(playerId);
+        }
+    }
+
+    private void flush(UUID playerId) {
+        List<Delta> deltas = drain(playerId);
+        if (deltas.isEmpty()) {
+            evictIfIdle(playerId);
+            return;
+        }
+
+        plugin.getDatabaseManager().executeAsync(connection -> writeDeltas(connection, deltas))
+            .whenComplete((ignored, error) -> {
+                settle(playerId, deltas, error != null);
+                if (error == null) {
+                    evictIfIdle(playerId);
+                }
+            });
+    }
+
+    private List<Delta> drain(UUID playerId) {
+        dirty.remove(playerId);
+        KeyAccount account = accounts.get(playerId);
+        if (account == null) {
+            return List.of();
+        }
+
+        CrateManager crateManager = plugin.getCrateManager();
+        List<Delta> deltas = new ArrayList<>();
+        synchronized (account) {
+            for (int i = 0; i < account.pending.length; i++) {
+                if (account.pending[i] != 0) {
+                    String crateId = crateManager.idAt(i);
+                    if (crateId != null) {
+                        deltas.add(new Delta(playerId, i, crateId, account.pending[i]));
+                        account.inFlight[i] += account.pending[i];
+                    }
+                    account.pending[i] = 0;
+                }
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Takes written deltas out of flight, or puts them back as pending if the write failed.
+     */
+    private void settle(UUID playerId, List<Delta> deltas, boolean failed) {
+        KeyAccount account = accounts.computeIfAbsent(playerId, uuid -> new KeyAccount());
+        synchronized (account) {
+            for (Delta delta : deltas) {
+                account.ensureCapacity(delta.index + 1);
+                account.inFlight[delta.index] -= delta.amount;
+                if (failed) {
+                    account.pending[delta.index] += delta.amount;
+                }
+            }
+        }
+        if (failed) {
+            dirty.add(playerId);
+        }
+    }
+
+    private void evictIfIdle(UUID playerId) {
+        accounts.computeIfPresent(playerId, (uuid, account) -> {
+            synchronized (account) {
+                if (account.online) {
+                    return account;
+                }
+                for (int i = 0; i < account.pending.length; i++) {
+                    if (account.pending[i] != 0 || account.inFlight[i] != 0) {
+                        return account;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private int[] readBalances(Connection connection, UUID playerId) throws SQLException {
+        CrateManager crateManager = plugin.getCrateManager();
+        int[] balances = new int[crateManager.indexCount()];
+
+        String sql = "SELECT crate_id, amount FROM lc_virtual_keys WHERE player_uuid = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, playerId.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int index = crateManager.indexOf(rs.getString("crate_id"));
+                    if (index >= 0 && index < balances.length) {
+                        balances[index] = rs.getInt("amount");
+                    }
+                }
+            }
+        }
+        return balances;
+    }
+
+    private void writeDeltas(Connection connection, List<Delta> deltas) throws SQLException {
+        String sql = """
+            INSERT INTO lc_virtual_keys (player_uuid, crate_id, amount)
+            VALUES (?, ?, ?)
+            ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)
+        """;
+
+        if (plugin.getDatabaseManager().getDatabaseType() == DatabaseManager.DatabaseType.SQLITE) {
+            sql = """
+                INSERT INTO lc_virtual_keys (player_uuid, crate_id, amount)
+                VALUES (?, ?, ?)
+                ON CONFLICT(player_uuid, crate_id) DO UPDATE SET amount = amount + excluded.amount
+            """;
+        }
+
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (Delta delta : deltas) {
+                stmt.setString(1, delta.playerId.toString());
+                stmt.setString(2, delta.crateId);
+                stmt.setInt(3, delta.amount);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private static final class KeyAccount {
+        private int[] balance = new int[0];
+        private int[] pending = new int[0];
+        private int[] inFlight = new int[0];
+        private boolean loaded;
+        private boolean online;
+
+        private void ensureCapacity(int size) {
+            if (balance.length < size) {
+                balance = Arrays.copyOf(balance, size);
+            }
+            if (pending.length < size) {
+                pending = Arrays.copyOf(pending, size);
+            }
+            if (inFlight.length < size) {
+                inFlight = Arrays.copyOf(inFlight, size);
+            }
+        }
+    }
+
+    private record Delta(UUID playerId, int index, String crateId, int amount) {
+    }
+}
@@ -2,59 +2,339 @@ package com.lootcrates.storage;
 
 import com.lootcrates.LootCratesPlugin;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.configuration.file.YamlConfiguration;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
+/**
+ * Blocks bound to crates, persisted in {@code crates.yml}.
+ * <p>
+ * Lookups go through a per-world index keyed by the packed block position, so checking a
+ * clicked block allocates nothing. Each world also tracks which chunks contain bound blocks,
+ * which lets most interactions be rejected with a single chunk lookup. Accessed from the
+ * main thread only.
+ * <p>
+ * Changes are appended to {@code crates.journal} on a background thread instead of
+ * rewriting {@code crates.yml}. {@link #compact()} periodically folds the journal back into
+ * {@code crates.yml}; on startup the snapshot is loaded first and the journal replayed on top.
+ */
 public class CrateBlocks {
+    private static final char BIND = 'B';
+    private static final char UNBIND = 'U';
+
     private final LootCratesPlugin plugin;
     private final File file;
-    private final YamlConfiguration conf;
+    private final File journalFile;
+    private final ExecutorService writer;
+
+    private final Map<String, WorldIndex> worlds = new HashMap<>();
+    private int journalEntries;
 
-    private final Map<String, String> map = new HashMap<>();
+    // Only touched by the writer thread
+    private BufferedWriter journal;
 
     public CrateBlocks(LootCratesPlugin plugin){
         this.plugin = plugin;
         this.file = new File(plugin.getDataFolder(), "crates.yml");
-        this.conf = YamlConfiguration.loadConfiguration(file);
+        this.journalFile = new File(plugin.getDataFolder(), "crates.journal");
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LootCrates-CrateBlocks");
+            thread.setDaemon(true);
+            return thread;
+        });
         load();
     }
 
-    private String key(Location l){
-        return l.getWorld().getName()+","+l.getBlockX()+","+l.getBlockY()+","+l.getBlockZ();
-    }
-
     public void bind(Location l, String crateId){
-        map.put(key(l), crateId.toUpperCase(java.util.Locale.ROOT));
-        save();
+        String world = l.getWorld().getName();
+        String crate = crateId.toUpperCase(java.util.Locale.ROOT);
+        put(world, l.getBlockX(), l.getBlockY(), l.getBlockZ(), crate);
+        append(BIND + "\t" + world + "\t" + l.getBlockX() + "\t" + l.getBlockY() + "\t" + l.getBlockZ() + "\t" + crate);
     }
 
     public void unbind(Location l){
-        map.remove(key(l));
-        save();
+        String world = l.getWorld().getName();
+        WorldIndex index = worlds.get(world);
+        if (index != null && index.remove(l.getBlockX(), l.getBlockY(), l.getBlockZ()) != null){
+            if (index.blocks.isEmpty()) worlds.remove(world);
+            append(UNBIND + "\t" + world + "\t" + l.getBlockX() + "\t" + l.getBlockY() + "\t" + l.getBlockZ());
+        }
     }
 
     public String get(Location l){
-        return map.get(key(l));
+        return l.getWorld() == null ? null : get(l.getWorld(), l.getBlockX(), l.getBlockY(), l.getBlockZ());
+    }
+
+    public String get(Block b){
+        return get(b.getWorld(), b.getX(), b.getY(), b.getZ());
+    }
+
+    public String get(World world, int x, int y, int z){
+        WorldIndex index = worlds.get(world.getName());
+        if (index == null || index.chunks.get(chunkKey(x >> 4, z >> 4)) == null) return null;
+        return index.blocks.get(blockKey(x, y, z));
+    }
+
+    /**
+     * @return true if at least one crate block is bound inside the chunk
+     */
+    public boolean hasCrates(World world, int chunkX, int chunkZ){
+        WorldIndex index = worlds.get(world.getName());
+        return index != null && index.chunks.get(chunkKey(chunkX, chunkZ)) != null;
+    }
+
+    /**
+     * Visits every crate block bound inside the chunk.
+     */
+    public void forEachInChunk(World world, int chunkX, int chunkZ, BlockVisitor visitor){
+        WorldIndex index = worlds.get(world.getName());
+        if (index == null) return;
+        ChunkBlocks chunk = index.chunks.get(chunkKey(chunkX, chunkZ));
+        if (chunk == null) return;
+        for (int i = 0; i < chunk.size; i++){
+            long key = chunk.positions[i];
+            visitor.visit(unpackX(key), unpackY(key), unpackZ(key), index.blocks.get(key));
+        }
+    }
+
+    public int size(){
+        int size = 0;
+        for (WorldIndex index : worlds.values()) size += index.blocks.size();
+        return size;
+    }
+
+    private void put(String world, int x, int y, int z, String crateId){
+        worlds.computeIfAbsent(world, w -> new WorldIndex()).put(x, y, z, crateId);
+    }
+
+    /**
+     * Folds the journal into a fresh {@code crates.yml} snapshot. The snapshot is taken here and
+     * written by the writer thread, after every change that was journaled before it.
+     */
+    public void compact(){
+        if (journalEntries == 0) return;
+        journalEntries = 0;
+
+        Map<String, String> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, WorldIndex> e: worlds.entrySet()){
+            String world = e.getKey();
+            e.getValue().blocks.forEach((key, crate) ->
+                snapshot.put(world+","+unpackX(key)+","+unpackY(key)+","+unpackZ(key), crate));
+        }
+        submit(() -> writeSnapshot(snapshot));
+    }
+
+    /**
+     * Compacts and waits for pending writes, used on shutdown.
+     */
+    public void close(){
+        compact();
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)){
+                plugin.getLogger().warning("Timed out writing crate block changes, they remain in crates.journal");
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        closeJournal();
+    }
+
+    private void append(String line){
+        journalEntries++;
+        submit(() -> {
+            try {
+                if (journal == null){
+                    journal = Files.newBufferedWriter(journalFile.toPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                journal.write(line);
+                journal.write('\n');
+                journal.flush();
+            } catch (IOException e){
+                plugin.getLogger().log(Level.SEVERE, "Failed to write crate block change to crates.journal", e);
+            }
+        });
+    }
+
+    private void submit(Runnable task){
+        if (writer.isShutdown()){
+            task.run();
+        } else {
+            writer.execute(task);
+        }
+    }
+
+    private void writeSnapshot(Map<String, String> snapshot){
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.createSection("blocks", snapshot);
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            yaml.save(temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Everything in the journal is now part of the snapshot
+            closeJournal();
+            Files.deleteIfExists(journalFile.toPath());
+        } catch (IOException e){
+            plugin.getLogger().log(Level.SEVERE, "Failed to compact crates.yml, changes stay in crates.journal", e);
+        }
+    }
+
+    private void closeJournal(){
+        if (journal == null) return;
+        try { journal.close(); } catch (IOException ignored){}
+        journal = null;
     }
 
     private void load(){
-        map.clear();
+        worlds.clear();
+        YamlConfiguration conf = YamlConfiguration.loadConfiguration(file);
         if (conf.isConfigurationSection("blocks")){
-            for (String k: conf.getConfigurationSection("blocks").getKeys(false)){
-                String crate = conf.getString("blocks."+k);
-                map.put(k, crate);
+            for (Map.Entry<String, Object> e: conf.getConfigurationSection("blocks").getValues(false).entrySet()){
+                String[] parts = e.getKey().split(",");
+                if (!(e.getValue() instanceof String crate) || parts.length != 4 || !put(parts[0], parts[1], parts[2], parts[3], crate)){
+                    plugin.getLogger().warning("Ignoring invalid crate block entry '" + e.getKey() + "' in crates.yml");
+                }
+            }
+        }
+        replayJournal();
+    }
+
+    private void replayJournal(){
+        if (!journalFile.isFile()) return;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)){
+            String line;
+            while ((line = reader.readLine()) != null){
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\t");
+                boolean valid;
+                if (line.charAt(0) == BIND && parts.length == 6){
+                    valid = put(parts[1], parts[2], parts[3], parts[4], parts[5]);
+                } else if (line.charAt(0) == UNBIND && parts.length == 5){
+                    valid = remove(parts[1], parts[2], parts[3], parts[4]);
+                } else {
+                    valid = false;
+                }
+                if (!valid){
+                    // Most likely a line cut short by a crash
+                    plugin.getLogger().warning("Ignoring invalid line in crates.journal: " + line);
+                }
+                journalEntries++;
+            }
+        } catch (IOException e){
+            plugin.getLogger().log(Level.SEVERE, "Failed to read crates.journal", e);
+        }
+    }
+
+    private boolean put(String world, String x, String y, String z, String crateId){
+        try {
+            put(world, Integer.parseInt(x), Integer.parseInt(y), Integer.parseInt(z), crateId);
+            return true;
+        } catch (NumberFormatException e){
+            return false;
+        }
+    }
+
+    private boolean remove(String world, String x, String y, String z){
+        try {
+            WorldIndex index = worlds.get(world);
+            if (index != null){
+                index.remove(Integer.parseInt(x), Integer.parseInt(y), Integer.parseInt(z));
+                if (index.blocks.isEmpty()) worlds.remove(world);
+            }
+            return true;
+        } catch (NumberFormatException e){
+            return false;
+        }
+    }
+
+    // 26 bits x, 26 bits z, 12 bits y, the same layout Minecraft uses for block positions
+    static long blockKey(int x, int y, int z){
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    static int unpackX(long key){
+        return (int) (key >> 38);
+    }
+
+    static int unpackY(long key){
+        return (int) (key << 52 >> 52);
+    }
+
+    static int unpackZ(long key){
+        return (int) (key << 26 >> 38);
+    }
+
+    static long chunkKey(int chunkX, int chunkZ){
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    @FunctionalInterface
+    public interface BlockVisitor {
+        void visit(int x, int y, int z, String crateId);
+    }
+
+    private static final class WorldIndex {
+        private final LongObjectMap<String> blocks = new LongObjectMap<>();
+        private final LongObjectMap<ChunkBlocks> chunks = new LongObjectMap<>();
+
+        private void put(int x, int y, int z, String crateId){
+            long key = blockKey(x, y, z);
+            if (blocks.put(key, crateId) == null){
+                long chunk = chunkKey(x >> 4, z >> 4);
+                ChunkBlocks entry = chunks.get(chunk);
+                if (entry == null){
+                    entry = new ChunkBlocks();
+                    chunks.put(chunk, entry);
+                }
+                entry.add(key);
+            }
+        }
+
+        private String remove(int x, int y, int z){
+            long key = blockKey(x, y, z);
+            String removed = blocks.remove(key);
+            if (removed != null){
+                long chunk = chunkKey(x >> 4, z >> 4);
+                ChunkBlocks entry = chunks.get(chunk);
+                if (entry != null && entry.remove(key) && entry.size == 0) chunks.remove(chunk);
             }
+            return removed;
         }
     }
 
-    private void save(){
-        conf.set("blocks", null);
-        for (Map.Entry<String, String> e: map.entrySet()){
-            conf.set("blocks."+e.getKey(), e.getValue());
+    /** Packed positions of the crate blocks in one chunk, usually just a few. */
+    private static final class ChunkBlocks {
+        private long[] positions = new long[2];
+        private int size;
+
+        private void add(long key){
+            if (size == positions.length) positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = key;
+        }
+
+        private boolean remove(long key){
+            for (int i = 0; i < size; i++){
+                if (positions[i] == key){
+                    positions[i] = positions[--size];
+                    return true;
+                }
+            }
+            return false;
         }
-        try { conf.save(file); } catch (IOException ignored){}
     }
 }
@@ -1,25 +1,99 @@
 package com.lootcrates.util;
 
-import java.util.regex.Matcher;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public class ColorUtil {
     
     private static final Pattern HEX_PATTERN = Pattern.compile("&#([A-Fa-f0-9]{6})");
+    private static final char SECTION = '§';
+    private static final boolean[] LEGACY_CODES = new boolean[128];
     
+    static {
+        for (char c : "0123456789AaBbCcDdEeFfKkLlMmNnOoRrXx".toCharArray()) {
+            LEGACY_CODES[c] = true;
+        }
+    }
+    
+    // Item names, lore lines and GUI labels are colorized over and over with the same input.
+    // Text built at runtime goes through colorizeUncached so it cannot evict them.
+    private static final int CACHE_SIZE = 512;
+    private static final int MAX_CACHED_LENGTH = 256;
+    private static final Map<String, String> CACHE = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    
+    /**
+     * Translates {@code &#RRGGBB} hex colors and legacy {@code &} codes in a single pass.
+     * Results are cached, so this is meant for fixed text such as configured names and lore.
+     */
     public static String colorize(String message) {
         if (message == null) return "";
+        if (message.indexOf('&') < 0) return message;
         
-        // Handle hex colors first
-        Matcher matcher = HEX_PATTERN.matcher(message);
-        while (matcher.find()) {
-            String hexCode = matcher.group(1);
-            String replacement = net.md_5.bungee.api.ChatColor.of("#" + hexCode).toString();
-            message = message.replace("&#" + hexCode, replacement);
+        if (message.length() > MAX_CACHED_LENGTH) {
+            return translate(message);
         }
-        
-        // Handle legacy color codes
-        return org.bukkit.ChatColor.translateAlternateColorCodes('&', message);
+        synchronized (CACHE) {
+            String cached = CACHE.get(message);
+            if (cached != null) return cached;
+        }
+        String result = translate(message);
+        synchronized (CACHE) {
+            CACHE.put(message, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Like {@link #colorize(String)}, but never cached. For text that contains runtime values
+     * such as player names or numbers, which would only fill the cache with one-off entries.
+     */
+    public static String colorizeUncached(String message) {
+        if (message == null) return "";
+        if (message.indexOf('&') < 0) return message;
+        return translate(message);
+    }
+    
+    private static String translate(String message) {
+        int length = message.length();
+        StringBuilder builder = null;
+        // Start of the text not yet copied; plain runs between codes are copied in one go
+        int copied = 0;
+        int i = message.indexOf('&');
+        while (i >= 0 && i + 1 < length) {
+            char next = message.charAt(i + 1);
+            if (next == '#' && isHex(message, i + 2)) {
+                if (builder == null) builder = new StringBuilder(length + 16);
+                // &#RRGGBB becomes §x§R§R§G§G§B§B
+                builder.append(message, copied, i).append(SECTION).append('x');
+                for (int j = i + 2; j < i + 8; j++) {
+                    builder.append(SECTION).append(Character.toLowerCase(message.charAt(j)));
+                }
+                copied = i + 8;
+            } else if (next < 128 && LEGACY_CODES[next]) {
+                if (builder == null) builder = new StringBuilder(length + 16);
+                builder.append(message, copied, i).append(SECTION).append(Character.toLowerCase(next));
+                copied = i + 2;
+            }
+            i = message.indexOf('&', Math.max(copied, i + 1));
+        }
+        if (builder == null) return message;
+        return builder.append(message, copied, length).toString();
+    }
+    
+    private static boolean isHex(String message, int start) {
+        if (start + 6 > message.length()) return false;
+        for (int i = start; i < start + 6; i++) {
+            char c = message.charAt(i);
+            boolean hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+            if (!hex) return false;
+        }
+        return true;
     }
     
     public static String stripColors(String message) {
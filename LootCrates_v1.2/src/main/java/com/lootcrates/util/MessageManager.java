@@ -14,7 +14,7 @@ public class MessageManager {
     
     private final LootCratesPlugin plugin;
     private FileConfiguration messages;
-    private final Map<String, String> cachedMessages = new HashMap<>();
+    private final Map<String, MessageTemplate> cachedMessages = new HashMap<>();
     
     public MessageManager(LootCratesPlugin plugin) {
         this.plugin = plugin;
@@ -43,35 +43,36 @@ public class MessageManager {
             if (section.isConfigurationSection(key)) {
                 cacheSection(fullKey, section.getConfigurationSection(key));
             } else if (section.isString(key)) {
-                cachedMessages.put(fullKey, section.getString(key));
+                cachedMessages.put(fullKey, MessageTemplate.compile(section.getString(key)));
             }
         }
     }
     
+    private MessageTemplate template(String key) {
+        MessageTemplate template = cachedMessages.get(key);
+        return template != null ? template : MessageTemplate.literal("§cMessage not found: " + key);
+    }
+    
     public String getMessage(String key) {
-        return cachedMessages.getOrDefault(key, "§cMessage not found: " + key);
+        return template(key).render();
     }
     
     public String getMessage(String key, Placeholder... placeholders) {
-        String message = getMessage(key);
-        for (Placeholder placeholder : placeholders) {
-            message = message.replace(placeholder.getKey(), placeholder.getValue());
-        }
-        return ColorUtil.colorize(message);
+        return template(key).render(placeholders);
     }
     
     public void sendMessage(Player player, String key, Placeholder... placeholders) {
         String message = getMessage(key, placeholders);
-        if (!message.trim().isEmpty()) {
+        if (!message.isBlank()) {
             player.sendMessage(message);
         }
     }
     
     public void sendMessageWithPrefix(Player player, String key, Placeholder... placeholders) {
-        String prefix = getMessage("general.prefix");
         String message = getMessage(key, placeholders);
-        if (!message.trim().isEmpty()) {
-            player.sendMessage(ColorUtil.colorize(prefix + message));
+        if (!message.isBlank()) {
+            // Both parts are already colorized
+            player.sendMessage(getMessage("general.prefix").concat(message));
         }
     }
     
@@ -0,0 +1,103 @@
+package com.lootcrates.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message compiled once at load time into literal segments, with their color codes
+ * already translated, and the placeholder slots between them. Rendering is a single pass
+ * into a reused builder; placeholder values are only colorized when they contain a color
+ * code themselves.
+ */
+final class MessageTemplate {
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final int MAX_RETAINED_BUFFER = 4096;
+
+    private final String[] literals;
+    private final String[] slots;
+    // Color code split by a placeholder, e.g. "&{color}", so it can only be translated after rendering
+    private final boolean colorizeAfterRender;
+
+    private MessageTemplate(String[] literals, String[] slots, boolean colorizeAfterRender) {
+        this.literals = literals;
+        this.slots = slots;
+        this.colorizeAfterRender = colorizeAfterRender;
+    }
+
+    static MessageTemplate compile(String raw) {
+        List<String> literals = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        boolean splitColor = false;
+
+        int literalStart = 0;
+        int open = raw.indexOf('{');
+        while (open >= 0) {
+            int close = open + 1;
+            while (close < raw.length() && isNameChar(raw.charAt(close))) {
+                close++;
+            }
+            if (close < raw.length() && raw.charAt(close) == '}' && close > open + 1) {
+                String literal = raw.substring(literalStart, open);
+                splitColor |= literal.endsWith("&") || literal.endsWith("&#");
+                literals.add(literal);
+                slots.add(raw.substring(open, close + 1));
+                literalStart = close + 1;
+            }
+            open = raw.indexOf('{', Math.max(open + 1, literalStart));
+        }
+        literals.add(raw.substring(literalStart));
+
+        if (!splitColor) {
+            literals.replaceAll(ColorUtil::colorize);
+        }
+        return new MessageTemplate(literals.toArray(new String[0]), slots.toArray(new String[0]), splitColor);
+    }
+
+    /**
+     * A fixed message that is used as is, e.g. the fallback for a missing key.
+     */
+    static MessageTemplate literal(String text) {
+        return new MessageTemplate(new String[]{text}, new String[0], false);
+    }
+
+    String render(MessageManager.Placeholder... placeholders) {
+        if (slots.length == 0) {
+            return literals[0];
+        }
+
+        StringBuilder builder = BUFFER.get();
+        builder.setLength(0);
+        for (int i = 0; i < slots.length; i++) {
+            builder.append(literals[i]);
+            String value = find(slots[i], placeholders);
+            if (value == null) {
+                builder.append(slots[i]);
+            } else if (!colorizeAfterRender && value.indexOf('&') >= 0) {
+                builder.append(ColorUtil.colorizeUncached(value));
+            } else {
+                builder.append(value);
+            }
+        }
+        builder.append(literals[slots.length]);
+
+        String result = builder.toString();
+        if (builder.capacity() > MAX_RETAINED_BUFFER) {
+            BUFFER.remove();
+        }
+        return colorizeAfterRender ? ColorUtil.colorizeUncached(result) : result;
+    }
+
+    private static String find(String slot, MessageManager.Placeholder[] placeholders) {
+        for (MessageManager.Placeholder placeholder : placeholders) {
+            if (slot.equals(placeholder.getKey())) {
+                return placeholder.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+}
@@ -1,19 +1,48 @@
 package com.lootcrates.util;
 
 import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.crate.Crate;
+import com.lootcrates.crate.Reward;
 import org.bukkit.Bukkit;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * In-memory counters and latency histograms.
+ * <p>
+ * Counters are {@link LongAdder}s held per crate in a slot addressed by the crate's interned
+ * index, with reward counters interned by reward id inside the slot, so recording never takes
+ * a lock once the slot exists. Snapshots read the counters while writers keep going.
+ */
 public class MetricsCollector {
     
+    /**
+     * Timed stages of a crate opening and of persistence.
+     */
+    public enum Stage {
+        OPEN,
+        ROLL,
+        DELIVERY,
+        DB_FLUSH
+    }
+    
     private final LootCratesPlugin plugin;
-    private final Map<String, Integer> crateOpenCounts = new HashMap<>();
-    private final Map<String, Integer> rewardCounts = new HashMap<>();
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final Object slotLock = new Object();
+    private volatile CrateSlot[] slots = new CrateSlot[0];
+    private PrometheusExporter exporter;
     
     public MetricsCollector(LootCratesPlugin plugin) {
         this.plugin = plugin;
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
         
         // Start metrics collection if bStats is available
         if (Bukkit.getPluginManager().getPlugin("bStats") != null) {
@@ -27,19 +56,180 @@ public class MetricsCollector {
         plugin.getLogger().info("Metrics collection initialized.");
     }
     
-    public void recordCrateOpen(String crateId) {
-        crateOpenCounts.merge(crateId, 1, Integer::sum);
+    /**
+     * Starts the Prometheus endpoint if it is enabled in the config.
+     */
+    public void startExporter() {
+        if (!plugin.getConfig().getBoolean("settings.metrics.prometheus.enabled", false)) {
+            return;
+        }
+        
+        String host = plugin.getConfig().getString("settings.metrics.prometheus.host", "127.0.0.1");
+        int port = plugin.getConfig().getInt("settings.metrics.prometheus.port", 9464);
+        String path = plugin.getConfig().getString("settings.metrics.prometheus.path", "/metrics");
+        try {
+            PrometheusExporter started = new PrometheusExporter(plugin, this);
+            started.start(host, port, path);
+            exporter = started;
+            plugin.getLogger().info("Prometheus metrics available on http://" + host + ":" + port + path);
+        } catch (IOException | IllegalArgumentException e) {
+            plugin.getLogger().warning("Failed to start Prometheus endpoint on " + host + ":" + port + ": " + e.getMessage());
+        }
     }
     
-    public void recordReward(String rewardType) {
-        rewardCounts.merge(rewardType, 1, Integer::sum);
+    public void shutdown() {
+        if (exporter != null) {
+            exporter.stop();
+            exporter = null;
+        }
+    }
+    
+    public void recordCrateOpen(Crate crate) {
+        recordCrateOpens(crate, 1);
+    }
+    
+    public void recordCrateOpens(Crate crate, int count) {
+        CrateSlot slot = slot(crate);
+        if (slot != null && count > 0) {
+            slot.opens.add(count);
+        }
+    }
+    
+    public void recordReward(Crate crate, Reward reward) {
+        CrateSlot slot = slot(crate);
+        if (slot == null || reward == null || reward.getId() == null) {
+            return;
+        }
+        
+        LongAdder counter = slot.rewards.get(reward.getId());
+        if (counter == null) {
+            counter = slot.rewards.computeIfAbsent(reward.getId(), id -> new LongAdder());
+        }
+        counter.increment();
+    }
+    
+    /**
+     * Counts a roll that was decided by pity protection.
+     */
+    public void recordPityTrigger(Crate crate) {
+        CrateSlot slot = slot(crate);
+        if (slot != null) {
+            slot.pityTriggers.increment();
+        }
+    }
+    
+    /**
+     * Records how long a stage took.
+     */
+    public void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+    
+    /**
+     * Records a stage that started at {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        histograms.get(stage).record(System.nanoTime() - startNanos);
+    }
+    
+    public LatencyHistogram.Snapshot getLatency(Stage stage) {
+        return histograms.get(stage).snapshot();
+    }
+    
+    public Map<String, Long> getCrateOpenCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (CrateSlot slot : slots) {
+            if (slot != null) {
+                counts.put(slot.crateId, slot.opens.sum());
+            }
+        }
+        return counts;
+    }
+    
+    /**
+     * @return reward counts per crate id, then per reward id
+     */
+    public Map<String, Map<String, Long>> getRewardCounts() {
+        Map<String, Map<String, Long>> counts = new HashMap<>();
+        for (CrateSlot slot : slots) {
+            if (slot == null) {
+                continue;
+            }
+            Map<String, Long> rewards = new HashMap<>();
+            slot.rewards.forEach((rewardId, counter) -> rewards.put(rewardId, counter.sum()));
+            counts.put(slot.crateId, rewards);
+        }
+        return counts;
+    }
+    
+    /**
+     * Visits the counters of every crate without building intermediate maps.
+     */
+    public void forEachCrate(CrateVisitor visitor) {
+        for (CrateSlot slot : slots) {
+            if (slot != null) {
+                visitor.visit(slot.crateId, slot.opens.sum(), slot.pityTriggers.sum());
+            }
+        }
+    }
+    
+    /**
+     * Visits the hit count of every reward rolled so far.
+     */
+    public void forEachReward(RewardVisitor visitor) {
+        for (CrateSlot slot : slots) {
+            if (slot != null) {
+                slot.rewards.forEach((rewardId, counter) -> visitor.visit(slot.crateId, rewardId, counter.sum()));
+            }
+        }
+    }
+    
+    private CrateSlot slot(Crate crate) {
+        int index = crate != null ? crate.getIndex() : -1;
+        if (index < 0) {
+            return null;
+        }
+        
+        CrateSlot[] current = slots;
+        CrateSlot slot = index < current.length ? current[index] : null;
+        if (slot != null) {
+            return slot;
+        }
+        
+        synchronized (slotLock) {
+            current = slots;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            } else if (current[index] != null) {
+                return current[index];
+            } else {
+                current = current.clone();
+            }
+            slot = new CrateSlot(crate.getId());
+            current[index] = slot;
+            slots = current;
+            return slot;
+        }
+    }
+    
+    private static final class CrateSlot {
+        private final String crateId;
+        private final LongAdder opens = new LongAdder();
+        private final LongAdder pityTriggers = new LongAdder();
+        private final Map<String, LongAdder> rewards = new ConcurrentHashMap<>();
+        
+        private CrateSlot(String crateId) {
+            this.crateId = crateId;
+        }
     }
     
-    public Map<String, Integer> getCrateOpenCounts() {
-        return new HashMap<>(crateOpenCounts);
+    @FunctionalInterface
+    public interface CrateVisitor {
+        void visit(String crateId, long opens, long pityTriggers);
     }
     
-    public Map<String, Integer> getRewardCounts() {
-        return new HashMap<>(rewardCounts);
+    @FunctionalInterface
+    public interface RewardVisitor {
+        void visit(String crateId, String rewardId, long hits);
     }
-}
\ No newline at end of file
+}
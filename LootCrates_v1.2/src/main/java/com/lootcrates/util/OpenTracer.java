@@ -0,0 +1,156 @@
+package com.lootcrates.util;
+
+import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.crate.Crate;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples crate openings and times each phase of them with {@link System#nanoTime()} spans.
+ * Sampled opens that take at least the configured threshold are kept in a fixed size ring
+ * buffer, newest overwriting oldest, for {@code /crate debug slow}.
+ * <p>
+ * Opens that are not sampled, and all opens while tracing is disabled, get {@link Trace#NONE},
+ * whose methods do nothing, so the opening code can mark phases unconditionally.
+ */
+public class OpenTracer {
+
+    /**
+     * Phases of an opening, in the order they run.
+     */
+    public enum Phase {
+        KEYS,
+        ROLL,
+        DELIVERY,
+        STATS,
+        MESSAGE,
+        COOLDOWN
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final boolean enabled;
+    private final double sampleRate;
+    private final long slowThresholdNanos;
+    private final SlowOpen[] slowOpens;
+    private int next;
+    private long recorded;
+
+    public OpenTracer(LootCratesPlugin plugin) {
+        this.enabled = plugin.getConfig().getBoolean("settings.tracing.enabled", false);
+        this.sampleRate = Math.max(0.0, Math.min(1.0, plugin.getConfig().getDouble("settings.tracing.sample_rate", 1.0)));
+        this.slowThresholdNanos = Math.max(0, plugin.getConfig().getLong("settings.tracing.slow_threshold_ms", 20)) * 1_000_000L;
+        this.slowOpens = new SlowOpen[Math.max(1, plugin.getConfig().getInt("settings.tracing.buffer_size", 50))];
+    }
+
+    /**
+     * Starts timing an opening if tracing is enabled and the opening is sampled.
+     */
+    public Trace begin() {
+        if (!enabled || (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return Trace.NONE;
+        }
+        return new Trace(this);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSlowThresholdMillis() {
+        return slowThresholdNanos / 1_000_000L;
+    }
+
+    /**
+     * @return the slow opens in the buffer, newest first
+     */
+    public synchronized List<SlowOpen> getSlowOpens() {
+        List<SlowOpen> result = new ArrayList<>(slowOpens.length);
+        for (int i = 1; i <= slowOpens.length; i++) {
+            SlowOpen open = slowOpens[Math.floorMod(next - i, slowOpens.length)];
+            if (open == null) {
+                break;
+            }
+            result.add(open);
+        }
+        return result;
+    }
+
+    /**
+     * @return how many slow opens were seen since the plugin was enabled, including ones
+     *         that no longer fit in the buffer
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    private synchronized void add(SlowOpen open) {
+        slowOpens[next] = open;
+        next = (next + 1) % slowOpens.length;
+        recorded++;
+    }
+
+    /**
+     * Timing of one opening. Each {@link #mark(Phase)} charges the time since the previous
+     * mark to a phase.
+     */
+    public static class Trace {
+
+        /**
+         * Trace of an opening that is not sampled.
+         */
+        public static final Trace NONE = new Trace(null);
+
+        private final OpenTracer tracer;
+        private final long start;
+        private final long[] phaseNanos;
+        private long last;
+
+        private Trace(OpenTracer tracer) {
+            this.tracer = tracer;
+            this.start = tracer != null ? System.nanoTime() : 0L;
+            this.phaseNanos = tracer != null ? new long[PHASES.length] : null;
+            this.last = start;
+        }
+
+        public void mark(Phase phase) {
+            if (tracer == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            phaseNanos[phase.ordinal()] += now - last;
+            last = now;
+        }
+
+        /**
+         * Ends the trace and keeps it if the opening was slow.
+         */
+        public void finish(Player player, Crate crate, int count) {
+            if (tracer == null) {
+                return;
+            }
+            long total = System.nanoTime() - start;
+            if (total >= tracer.slowThresholdNanos) {
+                tracer.add(new SlowOpen(System.currentTimeMillis(), player.getName(), crate.getId(), count, total, phaseNanos));
+            }
+        }
+    }
+
+    /**
+     * A sampled opening that took at least the slow threshold.
+     * @param phaseNanos time spent per {@link Phase}, indexed by ordinal
+     */
+    public record SlowOpen(long timestamp, String playerName, String crateId, int count, long totalNanos, long[] phaseNanos) {
+
+        public long getPhaseNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.lootcrates.util;
+
+import com.lootcrates.LootCratesPlugin;
+import com.lootcrates.database.ConnectionPool;
+import com.lootcrates.database.DatabaseManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+
+/**
+ * Serves plugin metrics in the Prometheus text exposition format from an embedded JDK HTTP
+ * server.
+ * <p>
+ * Requests are handled on a single daemon thread that only reads counters, histogram
+ * snapshots and pool statistics, so a scrape never touches the main thread. The response is
+ * rendered into a reused builder.
+ */
+public class PrometheusExporter {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] LATENCY_BUCKETS_SECONDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0
+    };
+
+    private final LootCratesPlugin plugin;
+    private final MetricsCollector metrics;
+    private final StringBuilder buffer = new StringBuilder(8192);
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public PrometheusExporter(LootCratesPlugin plugin, MetricsCollector metrics) {
+        this.plugin = plugin;
+        this.metrics = metrics;
+    }
+
+    public void start(String host, int port, String path) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LootCrates-Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(path, this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // Only ever called from the single exporter thread
+            buffer.setLength(0);
+            render(buffer);
+            byte[] body = buffer.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private void render(StringBuilder out) {
+        header(out, "lootcrates_crate_opens_total", "counter", "Crates opened");
+        metrics.forEachCrate((crateId, opens, pityTriggers) -> {
+            out.append("lootcrates_crate_opens_total{crate=\"");
+            label(out, crateId).append("\"} ").append(opens).append('\n');
+        });
+
+        header(out, "lootcrates_pity_triggers_total", "counter", "Rolls decided by pity protection");
+        metrics.forEachCrate((crateId, opens, pityTriggers) -> {
+            out.append("lootcrates_pity_triggers_total{crate=\"");
+            label(out, crateId).append("\"} ").append(pityTriggers).append('\n');
+        });
+
+        header(out, "lootcrates_reward_hits_total", "counter", "Rewards rolled");
+        metrics.forEachReward((crateId, rewardId, hits) -> {
+            out.append("lootcrates_reward_hits_total{crate=\"");
+            label(out, crateId).append("\",reward=\"");
+            label(out, rewardId).append("\"} ").append(hits).append('\n');
+        });
+
+        if (plugin.getCooldownManager() != null) {
+            header(out, "lootcrates_cooldown_cached_players", "gauge", "Players with cooldowns held in memory");
+            out.append("lootcrates_cooldown_cached_players ").append(plugin.getCooldownManager().getCachedPlayerCount()).append('\n');
+        }
+
+        DatabaseManager database = plugin.getDatabaseManager();
+        if (database != null) {
+            header(out, "lootcrates_db_queued_writes", "gauge", "Database writes waiting for the writer thread");
+            out.append("lootcrates_db_queued_writes ").append(database.getPendingWrites()).append('\n');
+            ConnectionPool.Stats main = database.getPoolStats();
+            ConnectionPool.Stats read = database.getReadPoolStats();
+            header(out, "lootcrates_db_pool_connections", "gauge", "Pooled database connections by state");
+            connections(out, "main", main);
+            connections(out, "read", read);
+            pool(out, main, read, "lootcrates_db_pool_waiting", "gauge", "Threads waiting for a connection", ConnectionPool.Stats::waiting);
+            pool(out, main, read, "lootcrates_db_pool_max_size", "gauge", "Maximum pool size", ConnectionPool.Stats::maxSize);
+            pool(out, main, read, "lootcrates_db_pool_timeouts_total", "counter", "Connection requests that timed out", ConnectionPool.Stats::timeouts);
+            pool(out, main, read, "lootcrates_db_pool_leaks_total", "counter", "Connections reported as leaked", ConnectionPool.Stats::leaks);
+        }
+
+        header(out, "lootcrates_stage_latency_seconds", "histogram", "Latency of crate opening and persistence stages");
+        for (MetricsCollector.Stage stage : MetricsCollector.Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = metrics.getLatency(stage);
+            String name = stage.name().toLowerCase();
+            for (double bound : LATENCY_BUCKETS_SECONDS) {
+                out.append("lootcrates_stage_latency_seconds_bucket{stage=\"").append(name).append("\",le=\"").append(bound).append("\"} ")
+                    .append(snapshot.countAtOrBelow((long) (bound * 1_000_000_000L))).append('\n');
+            }
+            out.append("lootcrates_stage_latency_seconds_bucket{stage=\"").append(name).append("\",le=\"+Inf\"} ")
+                .append(snapshot.getCount()).append('\n');
+            out.append("lootcrates_stage_latency_seconds_sum{stage=\"").append(name).append("\"} ")
+                .append(snapshot.getSumNanos() / 1_000_000_000.0).append('\n');
+            out.append("lootcrates_stage_latency_seconds_count{stage=\"").append(name).append("\"} ")
+                .append(snapshot.getCount()).append('\n');
+        }
+    }
+
+    private static void connections(StringBuilder out, String pool, ConnectionPool.Stats stats) {
+        if (stats != null) {
+            sample(out, "lootcrates_db_pool_connections", pool, "total", stats.total());
+            sample(out, "lootcrates_db_pool_connections", pool, "active", stats.active());
+            sample(out, "lootcrates_db_pool_connections", pool, "idle", stats.idle());
+        }
+    }
+
+    /**
+     * Writes one pool metric for the main pool and, when SQLite readers have their own pool,
+     * for the read pool.
+     */
+    private static void pool(StringBuilder out, ConnectionPool.Stats main, ConnectionPool.Stats read,
+                             String name, String type, String help, ToLongFunction<ConnectionPool.Stats> value) {
+        header(out, name, type, help);
+        if (main != null) {
+            sample(out, name, "main", null, value.applyAsLong(main));
+        }
+        if (read != null) {
+            sample(out, name, "read", null, value.applyAsLong(read));
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String pool, String state, long value) {
+        out.append(name).append("{pool=\"").append(pool);
+        if (state != null) {
+            out.append("\",state=\"").append(state);
+        }
+        out.append("\"} ").append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static StringBuilder label(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+        return out;
+    }
+}
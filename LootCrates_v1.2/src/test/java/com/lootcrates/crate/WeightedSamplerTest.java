@@ -0,0 +1,71 @@
+package com.lootcrates.crate;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WeightedSamplerTest {
+
+    private static final int DRAWS = 200_000;
+
+    // Chi-square critical value for 4 degrees of freedom at p = 0.001
+    private static final double CRITICAL_4_DF = 18.467;
+
+    @Test
+    void drawsFollowTheConfiguredWeights() {
+        int[] weights = {50, 30, 15, 4, 1};
+        List<Reward> rewards = rewards(weights);
+        WeightedSampler sampler = WeightedSampler.of(rewards);
+        assertEquals(100, sampler.getTotalWeight());
+
+        int[] observed = new int[weights.length];
+        Random rng = new Random(42L);
+        for (int i = 0; i < DRAWS; i++) {
+            observed[rewards.indexOf(sampler.sample(rng))]++;
+        }
+
+        double chiSquare = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            double expected = (double) DRAWS * weights[i] / sampler.getTotalWeight();
+            double diff = observed[i] - expected;
+            chiSquare += diff * diff / expected;
+        }
+        assertTrue(chiSquare < CRITICAL_4_DF, "chi-square " + chiSquare + " exceeds " + CRITICAL_4_DF);
+    }
+
+    @Test
+    void zeroAndNegativeWeightsAreNeverDrawn() {
+        List<Reward> rewards = rewards(new int[] {0, 5, -3, 5});
+        WeightedSampler sampler = WeightedSampler.of(rewards);
+        assertEquals(10, sampler.getTotalWeight());
+
+        Random rng = new Random(7L);
+        for (int i = 0; i < 10_000; i++) {
+            Reward reward = sampler.sample(rng);
+            assertNotEquals(rewards.get(0), reward);
+            assertNotEquals(rewards.get(2), reward);
+        }
+    }
+
+    @Test
+    void emptyTableDrawsNothing() {
+        assertSame(WeightedSampler.EMPTY, WeightedSampler.of(List.of()));
+        assertNull(WeightedSampler.EMPTY.sample(new Random(1L)));
+    }
+
+    private static List<Reward> rewards(int[] weights) {
+        List<Reward> rewards = new ArrayList<>();
+        for (int i = 0; i < weights.length; i++) {
+            rewards.add(new Reward("reward_" + i, weights[i], Reward.Type.COMMAND, "common"));
+        }
+        return rewards;
+    }
+}
@@ -0,0 +1,63 @@
+package com.lootcrates.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrateBlocksTest {
+
+    // 26 bits for x and z, 12 bits for y
+    private static final int MIN_XZ = -(1 << 25);
+    private static final int MAX_XZ = (1 << 25) - 1;
+    private static final int MIN_Y = -(1 << 11);
+    private static final int MAX_Y = (1 << 11) - 1;
+
+    @Test
+    void blockKeysRoundTripAtTheLimits() {
+        int[] xz = {MIN_XZ, MIN_XZ + 1, -30_000_000, -1, 0, 1, 30_000_000, MAX_XZ - 1, MAX_XZ};
+        int[] y = {MIN_Y, -64, -1, 0, 1, 319, MAX_Y};
+        for (int x : xz) {
+            for (int z : xz) {
+                for (int height : y) {
+                    assertRoundTrip(x, height, z);
+                }
+            }
+        }
+    }
+
+    @Test
+    void blockKeysRoundTripForRandomPositions() {
+        Random random = new Random(4L);
+        for (int i = 0; i < 100_000; i++) {
+            int x = MIN_XZ + random.nextInt(MAX_XZ - MIN_XZ + 1);
+            int z = MIN_XZ + random.nextInt(MAX_XZ - MIN_XZ + 1);
+            int y = MIN_Y + random.nextInt(MAX_Y - MIN_Y + 1);
+            assertRoundTrip(x, y, z);
+        }
+    }
+
+    @Test
+    void neighbouringBlocksHaveDistinctKeys() {
+        Set<Long> keys = new HashSet<>();
+        for (int x = -2; x <= 2; x++) {
+            for (int y = -2; y <= 2; y++) {
+                for (int z = -2; z <= 2; z++) {
+                    assertTrue(keys.add(CrateBlocks.blockKey(x, y, z)), x + "," + y + "," + z);
+                }
+            }
+        }
+    }
+
+    private static void assertRoundTrip(int x, int y, int z) {
+        long key = CrateBlocks.blockKey(x, y, z);
+        String position = x + "," + y + "," + z;
+        assertEquals(x, CrateBlocks.unpackX(key), position);
+        assertEquals(y, CrateBlocks.unpackY(key), position);
+        assertEquals(z, CrateBlocks.unpackZ(key), position);
+    }
+}
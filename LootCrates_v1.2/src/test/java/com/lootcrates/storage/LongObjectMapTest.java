@@ -0,0 +1,78 @@
+package com.lootcrates.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongObjectMapTest {
+
+    @Test
+    void matchesHashMapUnderRandomOperations() {
+        // A small key range keeps probe chains long and makes them wrap around the table end
+        checkAgainstHashMap(new Random(1L), 64, 200_000);
+        checkAgainstHashMap(new Random(2L), 4_096, 200_000);
+    }
+
+    @Test
+    void matchesHashMapForPackedBlockKeys() {
+        Random random = new Random(3L);
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            // Neighbouring blocks, as crates are usually placed close together
+            long key = CrateBlocks.blockKey(random.nextInt(32) - 16, random.nextInt(16) - 8, random.nextInt(32) - 16);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = "crate" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertSameContents(expected, map);
+    }
+
+    @Test
+    void clearEmptiesTheMap() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        for (long key = -100; key < 100; key++) {
+            map.put(key, "v" + key);
+        }
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(5L));
+        map.put(5L, "again");
+        assertEquals("again", map.get(5L));
+        assertEquals(1, map.size());
+    }
+
+    private static void checkAgainstHashMap(Random random, int keyRange, int operations) {
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < operations; i++) {
+            long key = random.nextInt(keyRange) - keyRange / 2;
+            switch (random.nextInt(3)) {
+                case 0 -> assertEquals(expected.put(key, i), map.put(key, i));
+                case 1 -> assertEquals(expected.remove(key), map.remove(key));
+                default -> assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertSameContents(expected, map);
+    }
+
+    private static <V> void assertSameContents(Map<Long, V> expected, LongObjectMap<V> map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, V> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<Long, V> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+}